@@ -0,0 +1,181 @@
+package pp.facerecognizer.recognition;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Reports the latency and verification accuracy of every {@link FlipMode} on a labeled pair set.
+ *
+ * A pair list has one pair per line, {@code <face A> <face B> <1 if same person, else 0>}, with
+ * image paths relative to the list file. Images must already be aligned 112x112 faces, e.g. the
+ * aligned LFW crops used to evaluate MobileFaceNet.
+ *
+ * To run it on a device, push the list as {@link #PAIRS_FILE} into {@link FileUtils#ROOT}
+ * together with its images and run the instrumented tests; it logs one line per mode and is
+ * skipped when there is no list.
+ */
+public class FlipModeBenchmark {
+    private static final Logger LOGGER = new Logger();
+
+    public static final String PAIRS_FILE = "flip_pairs.txt";
+
+    public static class LabeledPair {
+        final File first;
+        final File second;
+        final boolean same;
+
+        public LabeledPair(File first, File second, boolean same) {
+            this.first = first;
+            this.second = second;
+            this.same = same;
+        }
+    }
+
+    public static class Result {
+        public final FlipMode mode;
+        public final float msPerFace;
+        public final float accuracy;
+        public final float threshold;
+
+        Result(FlipMode mode, float msPerFace, float accuracy, float threshold) {
+            this.mode = mode;
+            this.msPerFace = msPerFace;
+            this.accuracy = accuracy;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.1fms/face, accuracy %.2f%% at threshold %.3f",
+                    mode, msPerFace, accuracy * 100.0f, threshold);
+        }
+    }
+
+    @Test
+    public void flipModes() throws IOException {
+        File listFile = new File(FileUtils.ROOT, PAIRS_FILE);
+        assumeTrue(listFile.isFile());
+
+        List<LabeledPair> pairs = loadPairs(listFile);
+        LOGGER.i("Flip modes on %d pairs of %s:", pairs.size(), listFile);
+        for (Result result : run(MobileFace.getEngine(), pairs)) {
+            LOGGER.i("  %s", result);
+        }
+    }
+
+    public static List<LabeledPair> loadPairs(File listFile) throws IOException {
+        List<LabeledPair> pairs = new ArrayList<>();
+        File dir = listFile.getParentFile();
+        try (BufferedReader reader = new BufferedReader(new FileReader(listFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length != 3) continue;
+                pairs.add(new LabeledPair(
+                        new File(dir, fields[0]), new File(dir, fields[1]), "1".equals(fields[2])));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Embeds every pair once per mode, two faces per call, and reports the mean latency per face
+     * and the best verification accuracy over all cosine thresholds.
+     */
+    public static List<Result> run(EmbeddingEngine engine, List<LabeledPair> pairs) {
+        List<Result> results = new ArrayList<>();
+        if (pairs.isEmpty()) return results;
+
+        final int size = FacePredictor.EMBEDDING_SIZE;
+        for (FlipMode mode : FlipMode.values()) {
+            List<LabeledPair> scored = new ArrayList<>(pairs.size());
+            float[] scores = new float[pairs.size()];
+            long elapsed = 0;
+
+            for (LabeledPair pair : pairs) {
+                Bitmap first = BitmapFactory.decodeFile(pair.first.getPath());
+                Bitmap second = BitmapFactory.decodeFile(pair.second.getPath());
+                if (first == null || second == null) {
+                    // missing or unreadable image, the pair is left out
+                    if (first != null) first.recycle();
+                    if (second != null) second.recycle();
+                    continue;
+                }
+                Bitmap[] faces = {first, second};
+
+                long start = System.nanoTime();
+                float[] emb = engine.embed(faces, mode);
+                elapsed += System.nanoTime() - start;
+
+                float dot = 0f;
+                for (int j = 0; j < size; j++) {
+                    dot += emb[j] * emb[size + j];
+                }
+                scores[scored.size()] = dot;
+                scored.add(pair);
+
+                for (Bitmap face : faces) face.recycle();
+            }
+
+            if (scored.isEmpty()) {
+                LOGGER.w("No readable pair in %d pairs", pairs.size());
+                return results;
+            }
+            if (scored.size() < pairs.size()) {
+                LOGGER.w("Skipped %d unreadable pairs", pairs.size() - scored.size());
+            }
+            float msPerFace = elapsed / 1e6f / (scored.size() * 2);
+            results.add(bestThreshold(mode, msPerFace, Arrays.copyOf(scores, scored.size()), scored));
+        }
+        return results;
+    }
+
+    private static Result bestThreshold(FlipMode mode, float msPerFace, float[] scores,
+                                        List<LabeledPair> pairs) {
+        Integer[] order = new Integer[scores.length];
+        int totalSame = 0;
+        for (int i = 0; i < scores.length; i++) {
+            order[i] = i;
+            if (pairs.get(i).same) totalSame++;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(scores[a], scores[b]));
+
+        // sweep thresholds upwards; everything at or above the threshold is called "same"
+        int sameBelow = 0;
+        int differentBelow = 0;
+        float bestAccuracy = 0f;
+        float bestThreshold = 0f;
+        for (int index : order) {
+            int correct = (totalSame - sameBelow) + differentBelow;
+            float accuracy = correct / (float) scores.length;
+            if (accuracy > bestAccuracy) {
+                bestAccuracy = accuracy;
+                bestThreshold = scores[index];
+            }
+            if (pairs.get(index).same) sameBelow++;
+            else differentBelow++;
+        }
+        // above the highest score every pair is called "different"
+        float rejectAll = differentBelow / (float) scores.length;
+        if (rejectAll > bestAccuracy) {
+            bestAccuracy = rejectAll;
+            bestThreshold = Math.nextUp(scores[order[order.length - 1]]);
+        }
+        return new Result(mode, msPerFace, bestAccuracy, bestThreshold);
+    }
+}
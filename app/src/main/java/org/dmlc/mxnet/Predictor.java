@@ -3,9 +3,20 @@ package org.dmlc.mxnet;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
 public class Predictor {
+  private static boolean directSupported = false;
+
   static {
     System.loadLibrary("mxnet_predict");
+    try {
+      System.loadLibrary("mxnet_direct");
+      directSupported = true;
+    } catch (UnsatisfiedLinkError e) {
+      // Buffer overloads fall back to Java array copies.
+    }
   }
 
   public static class InputNode {
@@ -35,6 +46,7 @@ public class Predictor {
   }
 
   private long handle = 0;
+  private float[] staging;
 
   public Predictor(byte[] symbol, byte[] params, Device dev, InputNode[] input) {
 	String[] keys = new String[input.length]; 
@@ -46,6 +58,49 @@ public class Predictor {
     this.handle = createPredictor(symbol, params, dev.ctype(), dev.id, keys, shapes);
   }
 
+  /**
+   * Creates a predictor from weights held in a ByteBuffer, e.g. a memory-mapped params file. A direct
+   * buffer is handed to native code as is; the bytes between position and limit are used.
+   */
+  public Predictor(byte[] symbol, ByteBuffer params, Device dev, InputNode[] input) {
+    String[] keys = new String[input.length];
+    int[][] shapes = new int[input.length][];
+    for (int i=0; i<input.length; ++i) {
+      keys[i] = input[i].key;
+      shapes[i] = input[i].shape;
+    }
+
+    if (directSupported && params.isDirect()) {
+      this.handle = createPredictorDirect(symbol, params, params.position(), params.remaining(),
+              dev.ctype(), dev.id, keys, shapes);
+    } else {
+      byte[] bytes = new byte[params.remaining()];
+      params.duplicate().get(bytes);
+      this.handle = createPredictor(symbol, bytes, dev.ctype(), dev.id, keys, shapes);
+    }
+  }
+
+  private Predictor() {}
+
+  /**
+   * Creates a predictor for other input shapes that shares this one's weights instead of loading
+   * them again, or returns null when the direct library is not available.
+   */
+  public Predictor reshape(InputNode[] input) {
+    if (!directSupported || this.handle == 0) return null;
+
+    String[] keys = new String[input.length];
+    int[][] shapes = new int[input.length][];
+    for (int i=0; i<input.length; ++i) {
+      keys[i] = input[i].key;
+      shapes[i] = input[i].shape;
+    }
+
+    Predictor reshaped = new Predictor();
+    reshaped.handle = reshapePredictor(this.handle, keys, shapes);
+    return reshaped;
+  }
+
   public void free() {
     if (this.handle != 0) {
       nativeFree(handle);
@@ -64,6 +119,43 @@ public class Predictor {
       nativeForward(this.handle, key, input);
   }
 
+  /**
+   * Runs a forward pass on the floats between the buffer's position and limit. A direct buffer in
+   * native byte order is read in place by native code; the buffer's position is left unchanged.
+   */
+  public void forward(String key, FloatBuffer input) {
+    if (this.handle == 0) return;
+    if (directSupported && input.isDirect()) {
+      nativeForwardBuffer(this.handle, key, input, input.position(), input.remaining());
+      return;
+    }
+
+    if (staging == null || staging.length != input.remaining()) {
+      staging = new float[input.remaining()];
+    }
+    input.duplicate().get(staging);
+    nativeForward(this.handle, key, staging);
+  }
+
+  /**
+   * Writes output {@code index} into the buffer at its position and advances the position past the
+   * written floats. A direct buffer is filled in place by native code.
+   *
+   * @return the number of floats written.
+   */
+  public int getOutput(int index, FloatBuffer output) {
+    if (this.handle == 0) return 0;
+    if (directSupported && output.isDirect()) {
+      int size = nativeGetOutputBuffer(this.handle, index, output, output.position(), output.remaining());
+      output.position(output.position() + size);
+      return size;
+    }
+
+    float[] result = nativeGetOutput(this.handle, index);
+    output.put(result);
+    return result.length;
+  }
+
   static public float[] inputFromImage(Bitmap[] bmps, float meanR, float meanG, float meanB) {
     if (bmps.length == 0) return null;
 
@@ -94,7 +186,11 @@ public class Predictor {
   }
 
   private native static long createPredictor(byte[] symbol, byte[] params, int devType, int devId, String[] keys, int[][] shapes);
+  private native static long createPredictorDirect(byte[] symbol, ByteBuffer params, int paramsPosition, int paramsSize, int devType, int devId, String[] keys, int[][] shapes);
+  private native static long reshapePredictor(long handle, String[] keys, int[][] shapes);
   private native static void nativeFree(long handle);
   private native static float[] nativeGetOutput(long handle, int index);
   private native static void nativeForward(long handle, String key, float[] input);
+  private native static void nativeForwardBuffer(long handle, String key, FloatBuffer input, int position, int size);
+  private native static int nativeGetOutputBuffer(long handle, int index, FloatBuffer output, int position, int capacity);
 }
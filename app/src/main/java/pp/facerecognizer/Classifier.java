@@ -26,13 +26,18 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import java.io.FileDescriptor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import androidx.core.util.Pair;
+import java.util.concurrent.CompletableFuture;
 import pp.facerecognizer.align.FacePreprocess;
+import pp.facerecognizer.detection.DetectionScheduler;
 import pp.facerecognizer.detection.MTCNN;
 import pp.facerecognizer.recognition.MobileFace;
-import pp.facerecognizer.search.Search;
+import pp.facerecognizer.search.Gallery;
+import pp.facerecognizer.search.GalleryRegistry;
+import pp.facerecognizer.tracking.MultiBoxTracker;
+import pp.facerecognizer.tracking.TrackedIdentity;
 
 /**
  * Generic interface for interacting with different recognition engines.
@@ -61,6 +66,9 @@ public class Classifier {
         /** Optional location within the source image for the location of the recognized object. */
         private RectF location;
 
+        /** Embedding and match behind this recognition, cached with its track. */
+        private TrackedIdentity identity;
+
         Recognition(
                 final String id, final String title, final Float confidence, final RectF location) {
             this.id = id;
@@ -89,6 +97,10 @@ public class Classifier {
             this.location = location;
         }
 
+        public TrackedIdentity getIdentity() {
+            return identity;
+        }
+
         @Override
         public String toString() {
             String resultString = "";
@@ -113,92 +125,215 @@ public class Classifier {
     }
 
     public static final int EMBEDDING_SIZE = 128;
-    private static Classifier classifier;
-
-    private MTCNN mtcnn;
-    private Search search;
-    private List<String> classNames;
+    // enrollment photos are detected at most this large on their longer side, so a full-resolution
+    // photo holds the detector no longer than a preview frame does
+    private static final int ENROLL_DETECT_SIZE = 640;
+    // and decoded at about twice that at most, which still leaves the aligned faces sharp
+    private static final int ENROLL_DECODE_SIZE = 1280;
+    private final MTCNN mtcnn;
+    // the TensorFlow session of MTCNN is not thread-safe; the galleries need no lock, see Search
+    private final Object detectorLock = new Object();
+    // recognition detects around tracked faces, with a full scan every few frames
+    private final DetectionScheduler scheduler;
+    private final GalleryRegistry galleries;
+    // people are added to and enrolled into this gallery
+    private volatile Gallery gallery;
+    // recognition searches these galleries, all open ones when empty
+    private volatile String[] queried = new String[0];
+
+    private Classifier(MTCNN mtcnn, GalleryRegistry galleries) {
+        this.mtcnn = mtcnn;
+        this.scheduler = new DetectionScheduler(mtcnn, DetectionScheduler.FULL_SCAN_INTERVAL);
+        this.galleries = galleries;
+        this.gallery = galleries.open(GalleryRegistry.DEFAULT, GalleryRegistry.DEFAULT_THRESHOLD);
+    }
 
-    private Classifier() {}
+    /**
+     * Completes once the models are warm, on the warm-up thread or on the caller's when they
+     * already are; several classifiers may share one registry.
+     */
+    static CompletableFuture<Classifier> create(AssetManager assetManager, GalleryRegistry galleries) {
+        // normally already started by MyApplication
+        return ModelWarmup.start(assetManager).thenApply(report -> new Classifier(report.mtcnn, galleries));
+    }
 
-    static Classifier getInstance (AssetManager assetManager,
-                                   int inputHeight,
-                                   int inputWidth) throws Exception {
-        if (classifier != null) return classifier;
+    /** Adds and enrolls people into the gallery {@code name}, opened if needed. */
+    void setEnrollmentGallery(String name) {
+        gallery = galleries.open(name, GalleryRegistry.DEFAULT_THRESHOLD);
+    }
 
-        classifier = new Classifier();
+    String getEnrollmentGallery() {
+        return gallery.getName();
+    }
 
-        classifier.mtcnn = MTCNN.create(assetManager);
-        classifier.search = Search.getInstance();
-        classifier.classNames = new ArrayList<>();
+    /** Every open gallery, in the order they were opened. */
+    List<String> getGalleryNames() {
+        return galleries.getNames();
+    }
 
-        return classifier;
+    /**
+     * Restricts recognition to the galleries named, e.g. only the small staff list; no names
+     * searches every open gallery.
+     */
+    void setQueriedGalleries(String... names) {
+        queried = names.clone();
     }
 
-    CharSequence[] getClassNames() {
-        CharSequence[] cs = new CharSequence[classNames.size() + 1];
-        int idx = 1;
+    /** Whether recognition searches the gallery {@code name}. */
+    boolean isQueried(String name) {
+        String[] names = queried;
+        return names.length == 0 || Arrays.asList(names).contains(name);
+    }
 
-        cs[0] = "+ Add new person";
-        for (String name : classNames) {
-            cs[idx++] = name;
+    /**
+     * Adds the gallery {@code name} to the searched ones, or takes it out; the last searched
+     * gallery stays in.
+     */
+    void setQueried(String name, boolean searched) {
+        List<String> names = new ArrayList<>();
+        for (String open : galleries.getNames()) {
+            if (open.equals(name) ? searched : isQueried(open)) names.add(open);
         }
+        if (!names.isEmpty()) setQueriedGalleries(names.toArray(new String[0]));
+    }
 
-        return cs;
+    /** Minimum score of a match in the gallery {@code name}, opened if needed. */
+    float getThreshold(String name) {
+        return galleries.open(name, GalleryRegistry.DEFAULT_THRESHOLD).getThreshold();
     }
 
-    List<Recognition> recognizeImage(Bitmap bitmap, Matrix matrix) {
-        synchronized (this) {
-            long startTime = System.currentTimeMillis();   //获取开始时间
-            Pair faces[] = mtcnn.detect(bitmap);
-            long endTime = System.currentTimeMillis(); //获取结束时间
-            System.out.println("人脸检测耗时： "+(endTime - startTime)+"ms");
+    void setThreshold(String name, float threshold) {
+        galleries.open(name, GalleryRegistry.DEFAULT_THRESHOLD).setThreshold(threshold);
+    }
 
+    CharSequence[] getClassNames() {
+        List<CharSequence> cs = new ArrayList<>();
 
+        cs.add("+ Add new person");
+        cs.addAll(gallery.getPeople());
 
-            final List<Recognition> mappedRecognitions = new LinkedList<>();
+        return cs.toArray(new CharSequence[0]);
+    }
 
-            for (Pair face : faces) {
+    /**
+     * The label of the person at {@code position} of {@link #getClassNames}, not counting the
+     * "add" entry.
+     */
+    int getLabel(int position) {
+        return gallery.getLabel(position);
+    }
 
-                float[][] landmark = (float[][])face.second;
+    private MTCNN.Face[] detect(Bitmap bitmap) {
+        synchronized (detectorLock) {
+            return mtcnn.detect(bitmap);
+        }
+    }
+
+    /**
+     * Safe to call while {@link #updateData} enrolls someone on another thread: the gallery is
+     * searched through its current snapshot, only face detection is serialized.
+     *
+     * @param tracker faces it has been following keep their cached identity instead of being
+     *                aligned, embedded and searched again, see
+     *                {@link MultiBoxTracker#getCachedIdentity}, and most frames are only
+     *                searched around them, see {@link DetectionScheduler}; null embeds every
+     *                face and scans every frame whole.
+     */
+    List<Recognition> recognizeImage(Bitmap bitmap, Matrix matrix, MultiBoxTracker tracker) {
+        long startTime = System.currentTimeMillis();   //获取开始时间
+        // tracked faces, mapped from the preview frame into the bitmap
+        List<RectF> regions = new ArrayList<>();
+        if (tracker != null) {
+            Matrix frameToBitmap = new Matrix();
+            matrix.invert(frameToBitmap);
+            for (RectF region : tracker.getTrackedRegions()) {
+                frameToBitmap.mapRect(region);
+                regions.add(region);
+            }
+        }
+        MTCNN.Face[] faces;
+        boolean fullScan;
+        synchronized (detectorLock) {
+            faces = scheduler.detect(bitmap, regions);
+            fullScan = scheduler.isLastFullScan();
+        }
+        long endTime = System.currentTimeMillis(); //获取结束时间
+        System.out.println("人脸检测耗时： "+(endTime - startTime)+"ms"
+                + (fullScan ? "（全图）" : "（" + regions.size() + "个跟踪区域）"));
 
-                Bitmap alignBitmap = FacePreprocess.facePreprocess(bitmap, landmark);
 
 
-                RectF rectF = (RectF) face.first;
+        final List<Recognition> mappedRecognitions = new LinkedList<>();
 
-//                Rect rect = new Rect();
-//                rectF.round(rect);
+        RectF[] frameRects = new RectF[faces.length];
+        TrackedIdentity[] identities = new TrackedIdentity[faces.length];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < faces.length; i++) {
+            frameRects[i] = new RectF(faces[i].getBox());
+            matrix.mapRect(frameRects[i]);
+            if (tracker != null) identities[i] = tracker.getCachedIdentity(frameRects[i], endTime);
+            if (identities[i] == null) pending.add(i);
+        }
+
+        if (!pending.isEmpty()) {
+            float[][][] landmarks = new float[pending.size()][][];
+            for (int j = 0; j < landmarks.length; j++) {
+                landmarks[j] = faces[pending.get(j)].getLandmarks();
+            }
 
+            // faces are aligned straight into the input of one batched pass
+            float[] embeddings = MobileFace.getEmbeddings(bitmap, landmarks);
 
-                float[] emb = MobileFace.getEmbeddings(alignBitmap);
-                Pair<Integer, Float> pair = search.predict(emb);
+            // one pass per gallery for every face in the frame, galleries in parallel
+            GalleryRegistry.Match[] matches = galleries.identify(embeddings, queried);
 
-                matrix.mapRect(rectF);
-                Float prob = pair.second;
+            for (int j = 0; j < matches.length; j++) {
+                GalleryRegistry.Match match = matches[j];
+                int i = pending.get(j);
 
-                String name;
-                if (prob > 0.5)
-                    name = classNames.get(pair.first);
-                else
+                // null below the gallery's threshold, or deleted while this frame was searched
+                String name = match.getPerson();
+                if (name == null)
                     name = "Unknown";
 
-                Recognition result =
-                        new Recognition("" + pair.first, name, prob, rectF);
-                mappedRecognitions.add(result);
+                identities[i] = new TrackedIdentity(
+                        Arrays.copyOfRange(embeddings, j * EMBEDDING_SIZE, (j + 1) * EMBEDDING_SIZE),
+                        match.getId(), name, match.score, frameRects[i].width(), endTime);
             }
-            return mappedRecognitions;
         }
-
+        System.out.println("人脸特征缓存命中： " + (faces.length - pending.size()) + "/" + faces.length);
+
+        for (int i = 0; i < faces.length; i++) {
+            TrackedIdentity identity = identities[i];
+            Recognition result = new Recognition(
+                    identity.getId(), identity.getTitle(), identity.getScore(), frameRects[i]);
+            result.identity = identity;
+            mappedRecognitions.add(result);
+        }
+        return mappedRecognitions;
     }
 
     void updateData(int label, ContentResolver contentResolver, ArrayList<Uri> uris) throws Exception {
         synchronized (this) {
-            ArrayList<float[]> list = new ArrayList<>();
+            ArrayList<Bitmap> alignBitmaps = new ArrayList<>();
 
             for (Uri uri : uris) {
-                Bitmap bitmap = getBitmapFromUri(contentResolver, uri);
-                Pair faces[] = mtcnn.detect(bitmap);
+                Bitmap bitmap = getBitmapFromUri(contentResolver, uri, ENROLL_DECODE_SIZE);
+
+                // detected on a downscaled copy, taking the detector lock once per photo, so
+                // recognition of the preview is only held up briefly
+                float scale = Math.min(1f,
+                        ENROLL_DETECT_SIZE / (float) Math.max(bitmap.getWidth(), bitmap.getHeight()));
+                Bitmap small = scale < 1f ? Bitmap.createScaledBitmap(bitmap,
+                        Math.round(bitmap.getWidth() * scale), Math.round(bitmap.getHeight() * scale), true)
+                        : bitmap;
+                MTCNN.Face[] faces = detect(small);
+                if (small != bitmap) small.recycle();
+                // no face above the detector's minimum score
+                if (faces.length == 0) {
+                    bitmap.recycle();
+                    continue;
+                }
 
                 Rect rect = new Rect();
 
@@ -206,7 +341,7 @@ public class Classifier {
                 float max_area = 0f;
                 int index = 0;
                 for (int i = 0; i < faces.length; i++){
-                    RectF rectF = (RectF) faces[i].first;
+                    RectF rectF = faces[i].getBox();
                     rectF.round(rect);
                     float area = (rect.right - rect.left) * (rect.bottom - rect.top);
                     if (area > max_area){
@@ -215,29 +350,73 @@ public class Classifier {
                     }
                 }
 
-                float[][] landmark = (float[][])faces[index].second;
+                // aligned from the decoded photo, not the detection copy
+                float[][] landmark = new float[faces[index].getLandmarks().length][];
+                for (int i = 0; i < landmark.length; i++) {
+                    float[] point = faces[index].getLandmarks()[i];
+                    landmark[i] = new float[] {point[0] / scale, point[1] / scale};
+                }
+
+                alignBitmaps.add(FacePreprocess.facePreprocess(bitmap, landmark));
+                bitmap.recycle();
+            }
+
+            if (alignBitmaps.isEmpty()) throw new IllegalArgumentException("No face found in " + uris);
 
-                Bitmap alignBitmap = FacePreprocess.facePreprocess(bitmap, landmark);
+            float[] embeddings = MobileFace.getEmbeddings(alignBitmaps.toArray(new Bitmap[0]));
 
-                float[] emb = MobileFace.getEmbeddings(alignBitmap);
-                list.add(emb);
+            ArrayList<float[]> list = new ArrayList<>();
+            for (int i = 0; i < alignBitmaps.size(); i++) {
+                list.add(Arrays.copyOfRange(
+                        embeddings, i * EMBEDDING_SIZE, (i + 1) * EMBEDDING_SIZE));
             }
 
-            search.storage(label, list);
+            gallery.enroll(label, list);
         }
     }
 
+    /**
+     * Removes a person and their enrollment from the enrollment gallery. Recognition stops
+     * returning them from the next frame.
+     */
+    void deletePerson(int label) {
+        gallery.delete(label);
+    }
+
+    /**
+     * Moves the enrollment of {@code from} to the person {@code to}, e.g. after photos were
+     * enrolled under the wrong name. {@code from} stays in the list, not enrolled.
+     */
+    void relabel(int from, int to) {
+        gallery.relabel(from, to);
+    }
+
     int addPerson(String name) {
-        classNames.add(name);
+        return gallery.addPerson(name) + 1;
+    }
 
-        return classNames.size();
+    // decoded with the largest power-of-two subsampling that keeps the longer side >= maxSize
+    private Bitmap getBitmapFromUri(ContentResolver contentResolver, Uri uri, int maxSize) throws Exception {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(contentResolver, uri, options);
+
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= maxSize) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = decode(contentResolver, uri, options);
+        if (bitmap == null) throw new IllegalArgumentException("Cannot decode " + uri);
+        return bitmap;
     }
 
-    private Bitmap getBitmapFromUri(ContentResolver contentResolver, Uri uri) throws Exception {
+    private Bitmap decode(ContentResolver contentResolver, Uri uri, BitmapFactory.Options options)
+            throws Exception {
         ParcelFileDescriptor parcelFileDescriptor =
                 contentResolver.openFileDescriptor(uri, "r");
         FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
         parcelFileDescriptor.close();
 
         return bitmap;
@@ -18,6 +18,7 @@ package pp.facerecognizer;
 
 import android.content.ClipData;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -30,6 +31,7 @@ import android.media.ImageReader.OnImageAvailableListener;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.SystemClock;
+import android.text.InputType;
 import android.util.Size;
 import android.util.TypedValue;
 import android.view.View;
@@ -40,17 +42,27 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 
 import androidx.appcompat.app.AlertDialog;
 
+import pp.facerecognizer.context.MyApplication;
 import pp.facerecognizer.env.BorderedText;
 import pp.facerecognizer.env.FileUtils;
 import pp.facerecognizer.env.ImageUtils;
 import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.recognition.FacePredictor;
+import pp.facerecognizer.recognition.PredictorPool;
+import pp.facerecognizer.search.GalleryRegistry;
+import pp.facerecognizer.search.GalleryTransfer;
 import pp.facerecognizer.tracking.MultiBoxTracker;
 
 /**
@@ -68,6 +80,15 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
     private static final boolean SAVE_PREVIEW_BITMAP = false;
     private static final float TEXT_SIZE_DIP = 10;
 
+    private static final int ENROLL_REQUEST = 1;
+    private static final String STATE_ENROLL_LABEL = "enroll_label";
+
+    // gallery choices, restored once the classifier is up
+    private static final String PREFS_GALLERIES = "galleries";
+    private static final String PREF_ENROLLMENT_GALLERY = "enrollment_gallery";
+    private static final String PREF_QUERIED_GALLERIES = "queried_galleries";
+    private static final String PREF_THRESHOLD = "threshold_";
+
     private Integer sensorOrientation;
 
     private Classifier classifier;
@@ -94,12 +115,20 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
     private Snackbar trainSnackbar;
     private FloatingActionButton button;
 
-    private boolean initialized = false;
-    private boolean training = false;
+    // set on the UI thread once the classifier is handed over, read by the camera thread
+    private volatile boolean initialized = false;
+    private boolean initializing = false;
+
+    // label the picked photos are enrolled for, -1 while the picker is not open; kept across
+    // the activity being recreated behind the picker
+    private int enrollLabel = -1;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (savedInstanceState != null) {
+            enrollLabel = savedInstanceState.getInt(STATE_ENROLL_LABEL, -1);
+        }
 
 
         FrameLayout container = findViewById(R.id.container);
@@ -125,16 +154,48 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
                             if (i == 0) {
                                 editDialog.show();
                             } else {
-                                performFileSearch(i - 1);
+                                performFileSearch(classifier.getLabel(i - 1));
                             }
                         })
+                        .setNeutralButton(R.string.galleries, (dialogInterface, i) -> showGalleries())
                         .show());
+        button.setOnLongClickListener(view -> {
+            CharSequence[] names = classifier.getClassNames();
+            CharSequence[] people = Arrays.copyOfRange(names, 1, names.length);
+            CharSequence[] actions = {getString(R.string.delete_person), getString(R.string.move_enrollment)};
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle(getString(R.string.edit_person))
+                    .setItems(people, (dialogInterface, i) -> {
+                        int label = classifier.getLabel(i);
+                        new AlertDialog.Builder(MainActivity.this)
+                                .setTitle(people[i])
+                                .setItems(actions, (actionDialog, action) -> {
+                                    if (action == 0) {
+                                        new Thread(() -> classifier.deletePerson(label)).start();
+                                        return;
+                                    }
+                                    // photos enrolled under the wrong name go to the right person
+                                    new AlertDialog.Builder(MainActivity.this)
+                                            .setTitle(getString(R.string.move_enrollment))
+                                            .setItems(people, (targetDialog, j) -> {
+                                                int to = classifier.getLabel(j);
+                                                new Thread(() -> classifier.relabel(label, to)).start();
+                                            })
+                                            .show();
+                                })
+                                .show();
+                    })
+                    .show();
+            return true;
+        });
     }
 
     @Override
     public void onPreviewSizeChosen(final Size size, final int rotation) {
-        if (!initialized)
-            new Thread(this::init).start();
+        if (!initialized && !initializing) {
+            initializing = true;
+            init();
+        }
 
         final float textSizePx =
         TypedValue.applyDimension(
@@ -200,22 +261,201 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
 
     void init() {
         runOnUiThread(()-> initSnackbar.show());
-        File dir = new File(FileUtils.ROOT);
 
-        if (!dir.isDirectory()) {
-            if (dir.exists()) dir.delete();
-            dir.mkdirs();
+        // the registry opens every gallery file, so it is loaded off the UI thread too
+        CompletableFuture.supplyAsync(() -> {
+            File dir = new File(FileUtils.ROOT);
+
+            if (!dir.isDirectory()) {
+                if (dir.exists()) dir.delete();
+                dir.mkdirs();
+            }
+            return MyApplication.getGalleries();
+        }).thenCompose(galleries -> Classifier.create(getAssets(), galleries))
+                .thenAccept(created -> {
+                    classifier = created;
+                    restoreGalleries();
+                })
+                .whenComplete((ignored, error) -> runOnUiThread(() -> {
+                    initSnackbar.dismiss();
+                    if (error != null) {
+                        LOGGER.e(error, "Exception initializing classifier!");
+                        finish();
+                        return;
+                    }
+                    initialized = true;
+                }));
+    }
+
+    // opens the galleries chosen in an earlier run with their thresholds; off the UI thread
+    private void restoreGalleries() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_GALLERIES, MODE_PRIVATE);
+        for (String key : prefs.getAll().keySet()) {
+            if (!key.startsWith(PREF_THRESHOLD)) continue;
+            String name = key.substring(PREF_THRESHOLD.length());
+            try {
+                classifier.setThreshold(name, prefs.getFloat(key, GalleryRegistry.DEFAULT_THRESHOLD));
+            } catch (IllegalArgumentException e) {
+                LOGGER.w("Skipping saved gallery %s", name);
+            }
+        }
+        String enrollment = prefs.getString(PREF_ENROLLMENT_GALLERY, null);
+        if (enrollment != null) classifier.setEnrollmentGallery(enrollment);
+        Set<String> queried = prefs.getStringSet(PREF_QUERIED_GALLERIES, Collections.<String>emptySet());
+        List<String> open = new ArrayList<>(queried);
+        open.retainAll(classifier.getGalleryNames());
+        classifier.setQueriedGalleries(open.toArray(new String[0]));
+    }
+
+    private void saveGalleries() {
+        List<String> queried = new ArrayList<>();
+        for (String name : classifier.getGalleryNames()) {
+            if (classifier.isQueried(name)) queried.add(name);
+        }
+        // every gallery searched is saved as none chosen, so galleries added later are searched too
+        if (queried.size() == classifier.getGalleryNames().size()) queried.clear();
+
+        SharedPreferences.Editor editor = getSharedPreferences(PREFS_GALLERIES, MODE_PRIVATE).edit()
+                .putString(PREF_ENROLLMENT_GALLERY, classifier.getEnrollmentGallery())
+                .putStringSet(PREF_QUERIED_GALLERIES, new HashSet<>(queried));
+        for (String name : classifier.getGalleryNames()) {
+            editor.putFloat(PREF_THRESHOLD + name, classifier.getThreshold(name));
         }
+        editor.apply();
+    }
 
-        try {
-            classifier = Classifier.getInstance(getAssets(), FACE_SIZE, FACE_SIZE);
-        } catch (Exception e) {
-            LOGGER.e("Exception initializing classifier!", e);
-            finish();
+    // which gallery people are enrolled into, which ones are searched and their thresholds
+    private void showGalleries() {
+        List<String> names = classifier.getGalleryNames();
+        CharSequence[] items = new CharSequence[names.size() + 1];
+        items[0] = getString(R.string.new_gallery);
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            items[i + 1] = getString(R.string.gallery_item, name, classifier.getThreshold(name),
+                    name.equals(classifier.getEnrollmentGallery()) ? getString(R.string.gallery_enrolling) : "",
+                    classifier.isQueried(name) ? "" : getString(R.string.gallery_not_searched));
         }
+        new AlertDialog.Builder(MainActivity.this)
+                .setTitle(R.string.galleries)
+                .setItems(items, (dialogInterface, i) -> {
+                    if (i == 0) {
+                        showNewGallery();
+                    } else {
+                        showGalleryActions(names.get(i - 1));
+                    }
+                })
+                .setNeutralButton(R.string.import_galleries, (dialogInterface, i) -> importGalleries())
+                .show();
+    }
+
+    // every file waiting in the import directory, see GalleryTransfer.importDirectory
+    private void importGalleries() {
+        trainSnackbar.show();
+        button.setEnabled(false);
+        new Thread(() -> {
+            int imported = GalleryTransfer.importDirectory(MyApplication.IMPORT_DIR, MyApplication.getGalleries());
+            runOnUiThread(() -> {
+                trainSnackbar.dismiss();
+                button.setEnabled(true);
+                showMessage(getString(R.string.imported_files, imported, MyApplication.IMPORT_DIR));
+            });
+        }).start();
+    }
+
+    private void exportGallery(String name) {
+        // binary, which import reads back into the gallery of the same name
+        File file = new File(MyApplication.EXPORT_DIR, name + ".emb");
+        new Thread(() -> {
+            String message;
+            try {
+                MyApplication.EXPORT_DIR.mkdirs();
+                GalleryTransfer.Report report =
+                        GalleryTransfer.exportFile(MyApplication.getGalleries().get(name), file);
+                message = getString(R.string.exported_gallery, report.identities, file);
+            } catch (IOException e) {
+                LOGGER.e(e, "Failed to export %s", name);
+                message = getString(R.string.export_failed, name);
+            }
+            String shown = message;
+            runOnUiThread(() -> showMessage(shown));
+        }).start();
+    }
+
+    private void showNewGallery() {
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_edittext, null);
+        EditText editText = dialogView.findViewById(R.id.edit_text);
+        new AlertDialog.Builder(MainActivity.this)
+                .setTitle(R.string.enter_gallery_name)
+                .setView(dialogView)
+                .setPositiveButton(getString(R.string.ok), (dialogInterface, i) -> {
+                    try {
+                        classifier.setEnrollmentGallery(editText.getText().toString().trim());
+                    } catch (IllegalArgumentException e) {
+                        showMessage(R.string.bad_gallery_name);
+                        return;
+                    }
+                    saveGalleries();
+                })
+                .show();
+    }
+
+    private void showGalleryActions(String name) {
+        boolean queried = classifier.isQueried(name);
+        CharSequence[] actions = {
+                getString(R.string.enroll_into_gallery),
+                getString(queried ? R.string.stop_searching_gallery : R.string.search_gallery),
+                getString(R.string.set_threshold),
+                getString(R.string.export_gallery)};
+        new AlertDialog.Builder(MainActivity.this)
+                .setTitle(name)
+                .setItems(actions, (dialogInterface, action) -> {
+                    if (action == 0) {
+                        classifier.setEnrollmentGallery(name);
+                    } else if (action == 1) {
+                        classifier.setQueried(name, !queried);
+                    } else if (action == 2) {
+                        showThreshold(name);
+                        return;
+                    } else {
+                        exportGallery(name);
+                        return;
+                    }
+                    saveGalleries();
+                })
+                .show();
+    }
+
+    private void showThreshold(String name) {
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_edittext, null);
+        EditText editText = dialogView.findViewById(R.id.edit_text);
+        editText.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+        editText.setText(String.valueOf(classifier.getThreshold(name)));
+        new AlertDialog.Builder(MainActivity.this)
+                .setTitle(getString(R.string.set_threshold) + ": " + name)
+                .setView(dialogView)
+                .setPositiveButton(getString(R.string.ok), (dialogInterface, i) -> {
+                    float threshold;
+                    try {
+                        threshold = Float.parseFloat(editText.getText().toString());
+                    } catch (NumberFormatException e) {
+                        threshold = -1f;
+                    }
+                    if (threshold < 0f || threshold > 1f) {
+                        showMessage(R.string.bad_threshold);
+                        return;
+                    }
+                    classifier.setThreshold(name, threshold);
+                    saveGalleries();
+                })
+                .show();
+    }
 
-        runOnUiThread(()-> initSnackbar.dismiss());
-        initialized = true;
+    private void showMessage(int message) {
+        showMessage(getString(message));
+    }
+
+    private void showMessage(String message) {
+        Snackbar.make(findViewById(R.id.container), message, Snackbar.LENGTH_SHORT).show();
     }
 
     @Override
@@ -233,7 +473,7 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         trackingOverlay.postInvalidate();
 
         // No mutex needed as this method is not reentrant.
-        if (computingDetection || !initialized || training) {
+        if (computingDetection || !initialized) {
             readyForNextImage();
             return;
         }
@@ -262,7 +502,7 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
 
                     cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
                     List<Classifier.Recognition> mappedRecognitions =
-                            classifier.recognizeImage(croppedBitmap,cropToFrameTransform);
+                            classifier.recognizeImage(croppedBitmap, cropToFrameTransform, tracker);
 
                     lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
                     tracker.trackResults(mappedRecognitions, luminanceCopy, currTimestamp);
@@ -283,8 +523,33 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         return DESIRED_PREVIEW_SIZE;
     }
 
+    @Override
+    public synchronized void onDestroy() {
+        if (initialized) {
+            PredictorPool pool = FacePredictor.getPool();
+            LOGGER.i("Releasing %d predictors, %d native bytes",
+                    pool.getAliveCount(), pool.getNativeBytes());
+            pool.shutdown();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_ENROLL_LABEL, enrollLabel);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != ENROLL_REQUEST) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        final int label = enrollLabel;
+        enrollLabel = -1;
+        if (label < 0) return;
+
         if (!initialized) {
             Snackbar.make(
                     getWindow().getDecorView().findViewById(R.id.container),
@@ -296,7 +561,6 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         if (resultCode == RESULT_OK) {
             trainSnackbar.show();
             button.setEnabled(false);
-            training = true;
 
             ClipData clipData = data.getClipData();
 //            Uri uri = clipData.getItemAt(0).getUri();
@@ -312,11 +576,9 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
 
             new Thread(() -> {
                 try {
-                    classifier.updateData(requestCode, getContentResolver(), uris);
+                    classifier.updateData(label, getContentResolver(), uris);
                 } catch (Exception e) {
                     LOGGER.e(e, "Exception!");
-                } finally {
-                    training = false;
                 }
                 runOnUiThread(() -> {
                     trainSnackbar.dismiss();
@@ -327,12 +589,17 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         }
     }
 
-    public void performFileSearch(int requestCode) {
+    /**
+     * Opens the photo picker to enroll {@code label}; labels can exceed the 16 bits a request
+     * code allows, so the label waits in {@link #enrollLabel}.
+     */
+    public void performFileSearch(int label) {
+        enrollLabel = label;
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         intent.setType("image/*");
 
-        startActivityForResult(intent, requestCode);
+        startActivityForResult(intent, ENROLL_REQUEST);
     }
 }
@@ -0,0 +1,135 @@
+package pp.facerecognizer;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pp.facerecognizer.detection.MTCNN;
+import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.recognition.EmbeddingEngine;
+import pp.facerecognizer.recognition.FacePredictor;
+import pp.facerecognizer.recognition.MobileFace;
+
+/**
+ * Loads MTCNN and the recognition model in parallel at startup and runs a dummy forward through
+ * each, so neither model loading nor the first-run setup of native kernels and allocators lands on
+ * the first real face.
+ */
+public class ModelWarmup {
+    private static final Logger LOGGER = new Logger();
+
+    // Size of the detector input, see MainActivity.CROP_SIZE.
+    private static final int DETECTOR_INPUT_SIZE = 300;
+
+    /**
+     * Load and warm-up timings of both models, plus the warmed-up detector.
+     */
+    public static class Report {
+        public final MTCNN mtcnn;
+        public final long mtcnnLoadMs;
+        public final long mtcnnWarmupMs;
+        public final String recognitionEngine;
+        public final long recognitionLoadMs;
+        public final long recognitionWarmupMs;
+
+        Report(Detector detector, Recognizer recognizer) {
+            this.mtcnn = detector.mtcnn;
+            this.mtcnnLoadMs = detector.loadMs;
+            this.mtcnnWarmupMs = detector.warmupMs;
+            this.recognitionEngine = recognizer.engine.getName();
+            this.recognitionLoadMs = recognizer.loadMs;
+            this.recognitionWarmupMs = recognizer.warmupMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("MTCNN load %dms warm-up %dms, %s load %dms warm-up %dms",
+                    mtcnnLoadMs, mtcnnWarmupMs,
+                    recognitionEngine, recognitionLoadMs, recognitionWarmupMs);
+        }
+    }
+
+    private static class Detector {
+        MTCNN mtcnn;
+        long loadMs;
+        long warmupMs;
+    }
+
+    private static class Recognizer {
+        EmbeddingEngine engine;
+        long loadMs;
+        long warmupMs;
+    }
+
+    private static CompletableFuture<Report> ready;
+
+    private ModelWarmup() {}
+
+    /**
+     * Starts the warm-up once per process; later calls return the same future.
+     */
+    public static synchronized CompletableFuture<Report> start(final AssetManager assetManager) {
+        if (ready != null) return ready;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        CompletableFuture<Detector> detector =
+                CompletableFuture.supplyAsync(() -> warmUpDetector(assetManager), executor);
+        CompletableFuture<Recognizer> recognizer =
+                CompletableFuture.supplyAsync(ModelWarmup::warmUpRecognizer, executor);
+
+        ready = detector.thenCombine(recognizer, Report::new);
+        ready.whenComplete((report, error) -> {
+            executor.shutdown();
+            if (error != null) {
+                LOGGER.e(error, "Model warm-up failed");
+            } else {
+                LOGGER.i("Models ready: %s", report);
+            }
+        });
+        return ready;
+    }
+
+    public static synchronized boolean isReady() {
+        return ready != null && ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    private static Detector warmUpDetector(AssetManager assetManager) {
+        Detector detector = new Detector();
+
+        long start = System.currentTimeMillis();
+        detector.mtcnn = MTCNN.create(assetManager);
+        long loaded = System.currentTimeMillis();
+
+        // every stage, not just P-Net, see MTCNN.warmUp
+        detector.mtcnn.warmUp(DETECTOR_INPUT_SIZE, DETECTOR_INPUT_SIZE);
+
+        detector.loadMs = loaded - start;
+        detector.warmupMs = System.currentTimeMillis() - loaded;
+        return detector;
+    }
+
+    private static Recognizer warmUpRecognizer() {
+        Recognizer recognizer = new Recognizer();
+
+        long start = System.currentTimeMillis();
+        // first touch runs the static initializer that maps the model
+        FacePredictor.getPool();
+        long loaded = System.currentTimeMillis();
+
+        recognizer.engine = MobileFace.getEngine();
+        Bitmap face = Bitmap.createBitmap(
+                FacePredictor.FACE_SIZE, FacePredictor.FACE_SIZE, Bitmap.Config.ARGB_8888);
+        recognizer.engine.embed(new Bitmap[]{face}, MobileFace.getFlipMode());
+        face.recycle();
+
+        // let the inference thread adopt the primed predictor
+        FacePredictor.getPool().detach();
+
+        recognizer.loadMs = loaded - start;
+        recognizer.warmupMs = System.currentTimeMillis() - loaded;
+        return recognizer;
+    }
+}
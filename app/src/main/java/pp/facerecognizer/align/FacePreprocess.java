@@ -2,6 +2,8 @@ package pp.facerecognizer.align;
 
 import android.graphics.Bitmap;
 
+import java.nio.FloatBuffer;
+
 public class FacePreprocess {
     static {
         try {
@@ -14,4 +16,19 @@ public class FacePreprocess {
 
     public static native Bitmap facePreprocess(Bitmap bitmap, float[][] landmark);
 
+    /**
+     * 对齐人脸, 不创建 Bitmap, 直接把 112x112 人脸按 CHW (R,G,B 平面, 0..255) 写到 direct buffer 的
+     * position 处: 原图和/或水平翻转图, 依次排列. position 前移写入的长度.
+     */
+    public static void facePreprocess(Bitmap bitmap, float[][] landmark, FloatBuffer tensor,
+                                      boolean original, boolean mirrored) {
+        int written = facePreprocessToTensor(bitmap, landmark, tensor,
+                tensor.position(), tensor.remaining(), original, mirrored);
+        tensor.position(tensor.position() + written);
+    }
+
+    private static native int facePreprocessToTensor(Bitmap bitmap, float[][] landmark, FloatBuffer tensor,
+                                                     int position, int remaining,
+                                                     boolean original, boolean mirrored);
+
 }
@@ -3,6 +3,13 @@ package pp.facerecognizer.context;
 import android.app.Application;
 import android.content.Context;
 
+import java.io.File;
+
+import pp.facerecognizer.ModelWarmup;
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.search.GalleryRegistry;
+import pp.facerecognizer.search.GalleryTransfer;
+import pp.facerecognizer.search.Precision;
 
 //import org.opencv.android.OpenCVLoader;
 
@@ -11,15 +18,39 @@ import android.content.Context;
  */
 public class MyApplication extends Application {
     public static Context context;
+    private static GalleryRegistry galleries;
+
+    /**
+     * Provisioning: embedding files pushed here are added to the gallery of their name, see
+     * {@link GalleryTransfer#importDirectory}.
+     */
+    public static final File IMPORT_DIR = new File(FileUtils.ROOT, "import");
+    /** Galleries are exported here, one file per gallery, see {@link GalleryTransfer#exportFile}. */
+    public static final File EXPORT_DIR = new File(FileUtils.ROOT, "export");
 
     @Override
     public void onCreate() {
         super.onCreate();
 
         context = getApplicationContext();
+
+        // load both models off the main thread before the camera starts
+        ModelWarmup.start(getAssets());
     }
 
     public static Context getContext() {
         return context;
     }
+
+    /**
+     * The watchlists of the app, opened from {@link FileUtils#ROOT} on first use so they outlive
+     * the activity. Embedding files are only imported on request, see {@link #IMPORT_DIR}.
+     */
+    public static synchronized GalleryRegistry getGalleries() {
+        if (galleries == null) {
+            galleries = new GalleryRegistry(new File(FileUtils.ROOT), Precision.FLOAT32);
+            galleries.openAll();
+        }
+        return galleries;
+    }
 }
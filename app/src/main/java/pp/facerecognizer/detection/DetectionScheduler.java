@@ -0,0 +1,200 @@
+package pp.facerecognizer.detection;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs {@link MTCNN} only where faces are expected on most frames. The regions around the faces
+ * being tracked are padded, packed side by side into one mosaic and detected in a single pass,
+ * so detection time follows the number of faces rather than the frame area.
+ *
+ * The whole frame is still scanned every {@link #FULL_SCAN_INTERVAL} passes to pick up newcomers,
+ * and right away when a track was lost, when a region came back without its face or when the
+ * mosaic would not be much smaller than the frame.
+ *
+ * Not thread-safe, like {@link MTCNN} itself.
+ */
+public class DetectionScheduler {
+    public static final int FULL_SCAN_INTERVAL = 10;
+
+    // Each region is squared and grown by this fraction of its larger side on every side, so the
+    // face is still inside after moving between the tracker update and the detection.
+    private static final float PADDING = 0.5f;
+    // MTCNN finds nothing in smaller regions.
+    private static final int MIN_REGION_SIZE = 48;
+    // Blank pixels between tiles, so that no face spans two of them.
+    private static final int GAP = 8;
+    // Above this share of the frame area, a mosaic saves too little to skip the full scan.
+    private static final float MAX_MOSAIC_AREA = 0.6f;
+
+    private static class Tile {
+        // where the tile comes from in the frame, and where it goes in the mosaic
+        final Rect source = new Rect();
+        final Rect target = new Rect();
+    }
+
+    private final MTCNN mtcnn;
+    private final int fullScanInterval;
+
+    private int sinceFullScan;
+    private int lastRegionCount;
+    private boolean fullScanDue = true;
+    private boolean lastFullScan;
+
+    // allocated at the frame size, reconfigured to the size of each mosaic
+    private Bitmap mosaic;
+    private final Canvas canvas = new Canvas();
+
+    public DetectionScheduler(MTCNN mtcnn, int fullScanInterval) {
+        this.mtcnn = mtcnn;
+        this.fullScanInterval = fullScanInterval;
+    }
+
+    /**
+     * Detects the faces of {@code bitmap}, in its coordinates, either over the whole bitmap or
+     * only inside the tracked regions.
+     *
+     * @param regions where faces are tracked now, in {@code bitmap} pixels; none scans the whole
+     *                bitmap.
+     */
+    public MTCNN.Face[] detect(Bitmap bitmap, List<RectF> regions) {
+        List<Tile> tiles = null;
+        if (!fullScanDue && ++sinceFullScan < fullScanInterval
+                && !regions.isEmpty() && regions.size() >= lastRegionCount) {
+            tiles = pack(bitmap.getWidth(), bitmap.getHeight(), regions);
+        }
+        lastRegionCount = regions.size();
+
+        if (tiles == null) {
+            sinceFullScan = 0;
+            fullScanDue = false;
+            lastFullScan = true;
+            return mtcnn.detect(bitmap);
+        }
+        lastFullScan = false;
+
+        MTCNN.Face[] found = mtcnn.detect(drawMosaic(bitmap, tiles));
+        List<MTCNN.Face> faces = new ArrayList<>(found.length);
+        for (MTCNN.Face face : found) {
+            MTCNN.Face mapped = toFrame(face, tiles);
+            if (mapped != null) faces.add(mapped);
+        }
+
+        // the face of a region may have moved out of it
+        if (faces.size() < tiles.size()) fullScanDue = true;
+        return faces.toArray(new MTCNN.Face[0]);
+    }
+
+    /** Whether the last {@link #detect} scanned the whole bitmap. */
+    public boolean isLastFullScan() {
+        return lastFullScan;
+    }
+
+    // Pads, merges and places the regions; null when a full scan costs about as much.
+    private static List<Tile> pack(int width, int height, List<RectF> regions) {
+        List<RectF> padded = new ArrayList<>(regions.size());
+        for (RectF region : regions) {
+            float half = Math.max(MIN_REGION_SIZE / 2f,
+                    Math.max(region.width(), region.height()) * (0.5f + PADDING));
+            RectF square = new RectF(region.centerX() - half, region.centerY() - half,
+                    region.centerX() + half, region.centerY() + half);
+            if (square.intersect(0, 0, width, height)) padded.add(square);
+        }
+        if (padded.isEmpty()) return null;
+
+        // overlapping regions become one, so a face is not detected twice
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            outer:
+            for (int i = 0; i < padded.size(); i++) {
+                for (int j = i + 1; j < padded.size(); j++) {
+                    if (RectF.intersects(padded.get(i), padded.get(j))) {
+                        padded.get(i).union(padded.remove(j));
+                        merged = true;
+                        break outer;
+                    }
+                }
+            }
+        }
+
+        List<Tile> tiles = new ArrayList<>(padded.size());
+        for (RectF region : padded) {
+            Tile tile = new Tile();
+            region.roundOut(tile.source);
+            tile.source.intersect(0, 0, width, height);
+            tiles.add(tile);
+        }
+        Collections.sort(tiles, (a, b) -> b.source.height() - a.source.height());
+
+        // shelves as wide as the frame, tallest tiles first
+        int x = 0, y = 0, shelf = 0, mosaicWidth = 0;
+        for (Tile tile : tiles) {
+            int w = tile.source.width(), h = tile.source.height();
+            if (x > 0 && x + w > width) {
+                y += shelf + GAP;
+                x = 0;
+                shelf = 0;
+            }
+            tile.target.set(x, y, x + w, y + h);
+            x += w + GAP;
+            shelf = Math.max(shelf, h);
+            mosaicWidth = Math.max(mosaicWidth, tile.target.right);
+        }
+        int mosaicHeight = y + shelf;
+
+        if (mosaicHeight > height || mosaicWidth * mosaicHeight > MAX_MOSAIC_AREA * width * height)
+            return null;
+        return tiles;
+    }
+
+    private Bitmap drawMosaic(Bitmap bitmap, List<Tile> tiles) {
+        int width = 0, height = 0;
+        for (Tile tile : tiles) {
+            width = Math.max(width, tile.target.right);
+            height = Math.max(height, tile.target.bottom);
+        }
+
+        if (mosaic == null || mosaic.getAllocationByteCount() < bitmap.getWidth() * bitmap.getHeight() * 4) {
+            mosaic = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        }
+        mosaic.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        mosaic.eraseColor(Color.BLACK);
+
+        canvas.setBitmap(mosaic);
+        for (Tile tile : tiles) {
+            canvas.drawBitmap(bitmap, tile.source, tile.target, null);
+        }
+        return mosaic;
+    }
+
+    // The face moved from the mosaic back into the frame, or null if it lies in the gap.
+    private static MTCNN.Face toFrame(MTCNN.Face face, List<Tile> tiles) {
+        RectF box = face.getBox();
+        float centerX = (box.left + box.right) / 2, centerY = (box.top + box.bottom) / 2;
+        for (Tile tile : tiles) {
+            Rect target = tile.target;
+            if (centerX < target.left || centerX >= target.right
+                    || centerY < target.top || centerY >= target.bottom) continue;
+
+            float dx = tile.source.left - target.left;
+            float dy = tile.source.top - target.top;
+            RectF frameBox = new RectF(box);
+            frameBox.offset(dx, dy);
+            float[][] landmarks = new float[face.getLandmarks().length][];
+            for (int i = 0; i < landmarks.length; i++) {
+                float[] point = face.getLandmarks()[i];
+                landmarks[i] = new float[] {point[0] + dx, point[1] + dy};
+            }
+            return new MTCNN.Face(frameBox, landmarks, face.getScore());
+        }
+        return null;
+    }
+}
@@ -20,17 +20,56 @@ import android.os.Trace;
 import org.tensorflow.Graph;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-
-import androidx.core.util.Pair;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MTCNN {
     private static final String MODEL_FILE = "file:///android_asset/mtcnn.pb";
-    // Only return this many results.
-    private static final int MAX_RESULTS = 100;
+    // The output buffers start with room for this many faces and grow when more are found.
+    private static final int INITIAL_RESULTS = 100;
     private static final int BYTE_SIZE_OF_FLOAT = 4;
+    // Inputs up to this many pixels, like the preview crops and the downscaled enrollment photos,
+    // reuse one cached input buffer; a larger bitmap gets a temporary one, so that a single full
+    // resolution photo does not keep its buffer allocated.
+    private static final int MAX_CACHED_AREA = 640 * 480;
+    // Off by default: the O-Net threshold in the graph already decides what is a face, see
+    // setMinScore for dropping more.
+    public static final float DEFAULT_MIN_SCORE = 0f;
+    // Const node with the P-Net, R-Net and O-Net score thresholds baked into the graph.
+    private static final String THRESHOLDS_NAME = "thresholds";
+
+    /**
+     * A detected face: its box and five landmarks (eyes, nose, mouth corners) in bitmap pixels,
+     * and the probability that it is a face.
+     */
+    public static final class Face {
+        private final RectF box;
+        private final float[][] landmarks;
+        private final float score;
+
+        Face(RectF box, float[][] landmarks, float score) {
+            this.box = box;
+            this.landmarks = landmarks;
+            this.score = score;
+        }
+
+        public RectF getBox() {
+            return box;
+        }
+
+        /** Five {x, y} points. */
+        public float[][] getLandmarks() {
+            return landmarks;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
 
     // Config values.
     private String inputName;
@@ -40,6 +79,12 @@ public class MTCNN {
     private FloatBuffer outputBoxes;
     private FloatBuffer outputLandmark;
     private String[] outputNames;
+    private volatile float minScore = DEFAULT_MIN_SCORE;
+
+    // Input of the last frame, kept for the next one; grown up to MAX_CACHED_AREA pixels.
+    private FloatBuffer inputBuffer = FloatBuffer.allocate(0);
+    // one row of the bitmap at a time, converted straight into the input buffer
+    private int[] rowPixels = new int[0];
 
     private TensorFlowInferenceInterface inferenceInterface;
 
@@ -71,24 +116,38 @@ public class MTCNN {
             throw new RuntimeException("Failed to find output Node '" + d.outputNames[2] + "'");
 
         // Pre-allocate buffers.
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(MAX_RESULTS * BYTE_SIZE_OF_FLOAT);
-        byteBuffer.order(ByteOrder.nativeOrder());
-        d.outputProbs = byteBuffer.asFloatBuffer();
+        d.outputProbs = allocateFloats(INITIAL_RESULTS);
+        d.outputLandmark = allocateFloats(INITIAL_RESULTS * 2 * 5);
+        d.outputBoxes = allocateFloats(INITIAL_RESULTS * 4);
 
-        d.outputLandmark = ByteBuffer.allocateDirect(MAX_RESULTS * BYTE_SIZE_OF_FLOAT * 2 * 5)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
+        return d;
+    }
+
+    private MTCNN() {}
 
-        d.outputBoxes = ByteBuffer.allocateDirect(MAX_RESULTS * BYTE_SIZE_OF_FLOAT * 4)
+    private static FloatBuffer allocateFloats(int count) {
+        return ByteBuffer.allocateDirect(count * BYTE_SIZE_OF_FLOAT)
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
+    }
 
-        return d;
+    /**
+     * Drops faces whose probability is below {@code minScore} before alignment and embedding, on
+     * top of the O-Net threshold of the graph; 0, the default, keeps everything the model returns.
+     */
+    public void setMinScore(float minScore) {
+        this.minScore = minScore;
     }
 
-    private MTCNN() {}
+    public float getMinScore() {
+        return minScore;
+    }
 
-    public Pair[] detect(Bitmap bitmap) {
+    /**
+     * Detects the faces of {@code bitmap} scoring at least {@link #getMinScore}. Not thread-safe:
+     * the input and output buffers are reused from one call to the next.
+     */
+    public Face[] detect(Bitmap bitmap) {
         // Log this method so that it can be analyzed with systrace.
         Trace.beginSection("detect");
 
@@ -96,24 +155,34 @@ public class MTCNN {
         // Preprocess the image data from 0-255 int to normalized float based
         // on the provided parameters.
         int w = bitmap.getWidth(), h = bitmap.getHeight();
-        int intValues[] = new int[w * h];
-        float floatValues[] = new float[w * h * 3];
-
-        bitmap.getPixels(intValues, 0, w, 0, 0, w, h);
-
-        // BGR
-        for (int i = 0; i < intValues.length; ++i) {
-            int p = intValues[i];
-
-            floatValues[i * 3 + 0] = p & 0xFF;
-            floatValues[i * 3 + 1] = (p >> 8) & 0xFF;
-            floatValues[i * 3 + 2] = (p >> 16) & 0xFF;
+        int area = w * h;
+        FloatBuffer input = inputBuffer;
+        if (input.capacity() < area * 3) {
+            input = FloatBuffer.allocate(area * 3);
+            if (area <= MAX_CACHED_AREA) inputBuffer = input;
+        }
+        if (rowPixels.length < w) rowPixels = new int[w];
+
+        // BGR, one pass over the bitmap straight into the input
+        final int[] pixels = rowPixels;
+        final float[] values = input.array();
+        for (int y = 0, j = 0; y < h; y++) {
+            bitmap.getPixels(pixels, 0, w, 0, y, w, 1);
+            for (int x = 0; x < w; ++x, j += 3) {
+                int p = pixels[x];
+
+                values[j] = p & 0xFF;
+                values[j + 1] = (p >> 8) & 0xFF;
+                values[j + 2] = (p >> 16) & 0xFF;
+            }
         }
         Trace.endSection(); // preprocessBitmap
 
         // Copy the input data into TensorFlow.
         Trace.beginSection("feed");
-        inferenceInterface.feed(inputName, floatValues, h, w, 3);
+        input.clear();
+        input.limit(area * 3);
+        inferenceInterface.feed(inputName, input, h, w, 3);
         Trace.endSection();
 
         // Run the inference call.
@@ -123,19 +192,14 @@ public class MTCNN {
 
         // Copy the output Tensor back into the output array.
         Trace.beginSection("fetch");
-        inferenceInterface.fetch(outputNames[0], outputProbs);
-        inferenceInterface.fetch(outputNames[1], outputLandmark);
-        inferenceInterface.fetch(outputNames[2], outputBoxes);
+        outputProbs = fetch(outputNames[0], outputProbs);
+        outputLandmark = fetch(outputNames[1], outputLandmark);
+        outputBoxes = fetch(outputNames[2], outputBoxes);
         Trace.endSection();
 
-        outputProbs.flip();
-        outputLandmark.flip();
-        outputBoxes.flip();
-
-
         int len = outputProbs.remaining();
-        int len2 = outputLandmark.remaining();
-        Pair faces[] = new Pair[len];
+        float minScore = this.minScore;
+        List<Face> faces = new ArrayList<>(len);
 
         for (int i = 0; i < len; i++) {
             float top = outputBoxes.get();
@@ -156,6 +220,9 @@ public class MTCNN {
             float left_mouse_x = outputLandmark.get();
             float right_mouse_x = outputLandmark.get();
 
+            float prob = outputProbs.get();
+            if (prob < minScore) continue;
+
             float[][] landmark = {
                 {left_eye_x, left_eye_y},
                 {right_eye_x, right_eye_y},
@@ -164,24 +231,47 @@ public class MTCNN {
                 {right_mouse_x, right_mouse_y}
             };
 
-            float prob = outputProbs.get();
-            faces[i] = new Pair<>(
-                    new RectF(left, top, right, bottom), landmark);
+            faces.add(new Face(new RectF(left, top, right, bottom), landmark, prob));
         }
 
-        if (outputBoxes.hasRemaining())
-            outputBoxes.position(outputBoxes.limit());
-
-        if (outputLandmark.hasRemaining())
-            outputLandmark.position(outputLandmark.limit());
+        Trace.endSection(); // "detect"
+        return faces.toArray(new Face[0]);
+    }
 
-        outputProbs.compact();
-        outputLandmark.compact();
-        outputBoxes.compact();
+    // Fetches the output into buffer, or into a buffer twice as large while it does not fit, and
+    // returns the buffer holding it, flipped for reading.
+    private FloatBuffer fetch(String outputName, FloatBuffer buffer) {
+        while (true) {
+            buffer.clear();
+            try {
+                inferenceInterface.fetch(outputName, buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                buffer = allocateFloats(buffer.capacity() * 2);
+            }
+        }
+    }
 
+    /**
+     * Runs all three stages once on a blank {@code width} x {@code height} image, so the first
+     * real frame does not pay their first-run setup. A blank image alone never gets past P-Net,
+     * so the stage thresholds are fed as 0 for this run and every candidate reaches R-Net and
+     * O-Net.
+     */
+    public void warmUp(int width, int height) {
+        Trace.beginSection("warmUp");
+        inferenceInterface.feed(inputName, new float[width * height * 3], height, width, 3);
+        if (inferenceInterface.graph().operation(THRESHOLDS_NAME) != null) {
+            // a Const, fed over for this run only
+            inferenceInterface.feed(THRESHOLDS_NAME, new float[3], 3);
+        }
+        inferenceInterface.run(outputNames, false);
 
-        Trace.endSection(); // "detect"
-        return faces;
+        outputProbs = fetch(outputNames[0], outputProbs);
+        outputLandmark = fetch(outputNames[1], outputLandmark);
+        outputBoxes = fetch(outputNames[2], outputBoxes);
+        Trace.endSection();
     }
 
     public String getStatString() {
@@ -0,0 +1,44 @@
+package pp.facerecognizer.recognition;
+
+import android.graphics.Bitmap;
+
+import pp.facerecognizer.align.FacePreprocess;
+
+/**
+ * A runtime that turns aligned 112x112 faces into embeddings.
+ *
+ * Every implementation must run the same MobileFaceNet weights and honour {@link FlipMode} the
+ * same way, so embeddings from different engines can be compared against one gallery.
+ */
+public interface EmbeddingEngine {
+    /** Short name for logs and benchmark reports. */
+    String getName();
+
+    /**
+     * Embeds aligned faces, using their mirrored copies as {@code flipMode} says.
+     *
+     * @return an N x {@link FacePredictor#EMBEDDING_SIZE} row-major block of L2-normalized
+     *         embeddings, row i belongs to alignedFaces[i].
+     */
+    float[] embed(Bitmap[] alignedFaces, FlipMode flipMode);
+
+    /**
+     * Aligns every face of {@code frame} by its five landmarks and embeds it. Engines that can
+     * take the aligned pixels without an intermediate Bitmap override this.
+     *
+     * @return an N x {@link FacePredictor#EMBEDDING_SIZE} row-major block, row i belongs to
+     *         landmarks[i].
+     */
+    default float[] embed(Bitmap frame, float[][][] landmarks, FlipMode flipMode) {
+        Bitmap[] alignedFaces = new Bitmap[landmarks.length];
+        for (int i = 0; i < landmarks.length; i++) {
+            alignedFaces[i] = FacePreprocess.facePreprocess(frame, landmarks[i]);
+        }
+        float[] embeddings = embed(alignedFaces, flipMode);
+        for (Bitmap face : alignedFaces) face.recycle();
+        return embeddings;
+    }
+
+    /** Releases native resources. The engine must not be used afterwards. */
+    void close();
+}
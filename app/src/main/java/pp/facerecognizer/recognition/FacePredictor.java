@@ -1,51 +1,138 @@
 package pp.facerecognizer.recognition;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 
+import pp.facerecognizer.BuildConfig;
 import pp.facerecognizer.R;
 import pp.facerecognizer.context.MyApplication;
+import pp.facerecognizer.env.Logger;
 
 import org.dmlc.mxnet.Predictor;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by zhao on 2016/11/24.
  */
 public class FacePredictor {
 
-    private static Predictor predictor;
+    public static final int FACE_SIZE = 112;
+    public static final int CHANNELS = 3;
+    public static final int IMAGE_SIZE = CHANNELS * FACE_SIZE * FACE_SIZE;
+    public static final int EMBEDDING_SIZE = 128;
+    // Bump whenever the model changes: stored embeddings of another version are not comparable.
+    public static final int MODEL_VERSION = 1;
+
+    // Input shapes a forward runs at, smallest first. A batch is padded up to the next one, so a
+    // thread keeps one predictor per size instead of reshaping for every face count; keep
+    // PredictorPool.MAX_SHAPES_PER_THREAD at least as large.
+    private static final int[] BATCH_SIZES = {1, 4, 8, 16};
+    // Largest batch a single forward takes.
+    public static final int MAX_BATCH = BATCH_SIZES[BATCH_SIZES.length - 1];
+
+    private static final String PARAMS_FILE = "model_0000_params";
+
+    private static final Logger LOGGER = new Logger();
+
+    private static PredictorPool pool;
     public  static byte[] symbol=null;
-    public static  byte[] params=null;
+    // mapped, not copied onto the Java heap
+    private static MappedByteBuffer params=null;
 
     static{
         //symbol = readRawFile(MyApplication.getContext(), R.raw.lightened_cnn_android_symbol);
         //params = readRawFile(MyApplication.getContext(), R.raw.lightened_cnn_android_params);
         try {
             symbol = readRawFile(MyApplication.getContext(), R.raw.model_symbol);
-            params = readRawFile(MyApplication.getContext(), R.raw.model_0000_params);
-        }catch(Exception e){
-            System.out.println("加载mobileface模型出错！");
-            e.printStackTrace();
+            params = mapRawFile(MyApplication.getContext(), R.raw.model_0000_params, PARAMS_FILE);
+        } catch (IOException | Resources.NotFoundException e) {
+            // without the model every later embedding would fail with a far less telling error
+            LOGGER.e(e, "Failed to load the MobileFace model");
+            throw new IllegalStateException("Failed to load the MobileFace model", e);
         }
-    }
-    public static Predictor getPredictor() {
 
         Predictor.Device device = new Predictor.Device(Predictor.Device.Type.CPU, 0);
-        //final int[] shape = {1, 1,128, 128};
-        final int[] shape = {1, 3, 112, 112};
-        String key = "data";
+        pool = new PredictorPool(symbol, params, device);
+    }
 
-        Predictor.InputNode node = new Predictor.InputNode(key, shape);
+    public static PredictorPool getPool() {
+        return pool;
+    }
 
-        predictor = new Predictor(symbol, params, device, new Predictor.InputNode[]{node});
+    /**
+     * Borrows the calling thread's predictor for a single 112x112 face. Hand it back with
+     * {@link #release(Predictor)} once the output has been read.
+     */
+    public static Predictor acquire() {
+        return acquire(1);
+    }
 
-        return predictor;
+    /**
+     * Borrows the calling thread's predictor whose input holds {@link #paddedBatch(int)
+     * paddedBatch(batchSize)} faces. The caller fills the rows past {@code batchSize} with padding.
+     */
+    public static Predictor acquire(int batchSize) {
+        return pool.acquire(new int[]{paddedBatch(batchSize), CHANNELS, FACE_SIZE, FACE_SIZE});
+    }
+
+    /** The batch size a forward of {@code batchSize} faces runs at, at most {@link #MAX_BATCH}. */
+    public static int paddedBatch(int batchSize) {
+        for (int size : BATCH_SIZES) {
+            if (batchSize <= size) return size;
+        }
+        throw new IllegalArgumentException("Batch of " + batchSize + " exceeds " + MAX_BATCH);
+    }
+
+    public static void release(Predictor predictor) {
+        pool.release(predictor);
+    }
+
+    /**
+     * Maps a raw resource read-only. The resource is mapped straight out of the APK when it is
+     * stored uncompressed (see aaptOptions in build.gradle); otherwise it is copied once to the
+     * app's private files directory, which needs no storage permission, and the copy is mapped.
+     */
+    public static MappedByteBuffer mapRawFile(Context ctx, int resId, String fileName) throws IOException {
+        try (AssetFileDescriptor afd = ctx.getResources().openRawResourceFd(resId);
+             FileInputStream in = new FileInputStream(afd.getFileDescriptor())) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+        } catch (Resources.NotFoundException e) {
+            // compressed inside the APK, cannot be mapped in place
+        }
+
+        // the version code in the name makes an app update replace a stale copy
+        File file = new File(ctx.getFilesDir(), fileName + "." + BuildConfig.VERSION_CODE);
+        if (!file.exists()) {
+            file.getParentFile().mkdirs();
+            File tmp = new File(file.getPath() + ".tmp");
+            try (InputStream ins = ctx.getResources().openRawResource(resId);
+                 OutputStream out = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[64 * 1024];
+                int size;
+                while ((size = ins.read(buffer)) >= 0) {
+                    out.write(buffer, 0, size);
+                }
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Failed to move " + tmp + " to " + file);
+        }
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
     }
 
-    public static byte[] readRawFile(Context ctx, int resId)
+    public static byte[] readRawFile(Context ctx, int resId) throws IOException
     {
         ByteArrayOutputStream outputStream=new ByteArrayOutputStream();
         int size = 0;
@@ -54,8 +141,6 @@ public class FacePredictor {
             while((size=ins.read(buffer,0,1024))>=0){
                 outputStream.write(buffer,0,size);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
         return outputStream.toByteArray();
     }
@@ -0,0 +1,80 @@
+package pp.facerecognizer.recognition;
+
+import android.graphics.Bitmap;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Converts aligned 112x112 faces into the planar CHW float layout the recognition model takes,
+ * optionally mirrored, in a single pass over the pixels.
+ *
+ * The pixel scratch array is kept per thread, so converting a face allocates nothing. Values stay in
+ * 0..255; the model subtracts the mean and scales its input itself.
+ */
+public final class FaceTensors {
+
+    private static class Scratch {
+        final int[] pixels = new int[FacePredictor.FACE_SIZE * FacePredictor.FACE_SIZE];
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private FaceTensors() {}
+
+    /**
+     * Writes the face as CHW floats into {@code dst} starting at {@code offset}.
+     *
+     * @param mirror write the horizontally mirrored face instead.
+     */
+    public static void write(Bitmap face, boolean mirror, float[] dst, int offset) {
+        final int width = FacePredictor.FACE_SIZE;
+        final int area = width * width;
+
+        int[] pixels = scratch.get().pixels;
+        face.getPixels(pixels, 0, width, 0, 0, width, width);
+
+        for (int y = 0; y < width; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[row + (mirror ? width - 1 - x : x)];
+                int j = offset + row + x;
+                dst[j] = (pixel >> 16) & 0xFF;
+                dst[area + j] = (pixel >> 8) & 0xFF;
+                dst[2 * area + j] = pixel & 0xFF;
+            }
+        }
+    }
+
+    /**
+     * Writes the face as CHW floats at the buffer's position and advances it by one image, e.g.
+     * into the direct input buffer of a batched forward. The values go straight into the buffer
+     * with absolute puts, without a float[] in between.
+     *
+     * @param mirror write the horizontally mirrored face instead.
+     */
+    public static void write(Bitmap face, boolean mirror, FloatBuffer dst) {
+        final int width = FacePredictor.FACE_SIZE;
+        final int area = width * width;
+        final int offset = dst.position();
+
+        int[] pixels = scratch.get().pixels;
+        face.getPixels(pixels, 0, width, 0, 0, width, width);
+
+        for (int y = 0; y < width; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[row + (mirror ? width - 1 - x : x)];
+                int j = offset + row + x;
+                dst.put(j, (pixel >> 16) & 0xFF);
+                dst.put(area + j, (pixel >> 8) & 0xFF);
+                dst.put(2 * area + j, pixel & 0xFF);
+            }
+        }
+        dst.position(offset + FacePredictor.IMAGE_SIZE);
+    }
+}
@@ -0,0 +1,14 @@
+package pp.facerecognizer.recognition;
+
+/**
+ * How the mirrored face is used as test-time augmentation. The embedding of a face is the
+ * normalized sum of the original and mirrored embeddings unless the mode is {@link #NONE}.
+ */
+public enum FlipMode {
+    /** Original face only: one image per face, lowest latency. */
+    NONE,
+    /** Originals in one forward, their mirrors in a second forward. */
+    SECOND_PASS,
+    /** Each face and its mirror side by side in the same batch. */
+    FUSED_BATCH
+}
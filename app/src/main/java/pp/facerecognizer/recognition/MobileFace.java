@@ -5,11 +5,35 @@ import android.graphics.Bitmap;
 
 public class MobileFace {
 
+    private static volatile EmbeddingEngine engine = new MxNetEmbeddingEngine();
+    private static volatile FlipMode flipMode = FlipMode.FUSED_BATCH;
+
+    /**
+     * Switches the runtime used for all later embeddings.
+     */
+    public static void setEngine(EmbeddingEngine embeddingEngine) {
+        engine = embeddingEngine;
+    }
+
+    public static EmbeddingEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Chooses how mirrored faces are used, see the instrumented FlipModeBenchmark for the tradeoff.
+     */
+    public static void setFlipMode(FlipMode mode) {
+        flipMode = mode;
+    }
+
+    public static FlipMode getFlipMode() {
+        return flipMode;
+    }
 
     public static float[] getEmbeddings(Bitmap originalBitmap) {
 
         long startTime = System.currentTimeMillis();   //获取开始时间
-        float[] emb = MxNetUtils.getFeatures(originalBitmap);
+        float[] emb = engine.embed(new Bitmap[]{originalBitmap}, flipMode);
         long endTime=System.currentTimeMillis(); //获取结束时间
 
         System.out.println("人脸识别耗时： "+(endTime-startTime)+"ms");
@@ -17,4 +41,37 @@ public class MobileFace {
         return emb;
     }
 
+    /**
+     * Embeds all aligned faces of a frame in batched forwards of the current engine.
+     *
+     * @return an N x EMBEDDING_SIZE row-major block, row i belongs to alignedFaces[i].
+     */
+    public static float[] getEmbeddings(Bitmap[] alignedFaces) {
+
+        long startTime = System.currentTimeMillis();
+        float[] emb = engine.embed(alignedFaces, flipMode);
+        long endTime=System.currentTimeMillis();
+
+        System.out.println(alignedFaces.length + "张人脸识别耗时： "+(endTime-startTime)+"ms");
+
+        return emb;
+    }
+
+    /**
+     * Embeds every face of a frame given its landmarks, aligning natively into the engine input
+     * where the engine supports it.
+     *
+     * @return an N x EMBEDDING_SIZE row-major block, row i belongs to landmarks[i].
+     */
+    public static float[] getEmbeddings(Bitmap frame, float[][][] landmarks) {
+
+        long startTime = System.currentTimeMillis();
+        float[] emb = engine.embed(frame, landmarks, flipMode);
+        long endTime=System.currentTimeMillis();
+
+        System.out.println(landmarks.length + "张人脸对齐+识别耗时： "+(endTime-startTime)+"ms");
+
+        return emb;
+    }
+
 }
@@ -0,0 +1,33 @@
+package pp.facerecognizer.recognition;
+
+import android.graphics.Bitmap;
+
+/**
+ * The MXNet predictor path of {@link MxNetUtils}, with predictors taken from the
+ * {@link FacePredictor} pool.
+ */
+public class MxNetEmbeddingEngine implements EmbeddingEngine {
+
+    @Override
+    public String getName() {
+        return "mxnet";
+    }
+
+    @Override
+    public float[] embed(Bitmap[] alignedFaces, FlipMode flipMode) {
+        return MxNetUtils.getFeatures(alignedFaces, flipMode);
+    }
+
+    @Override
+    public float[] embed(Bitmap frame, float[][][] landmarks, FlipMode flipMode) {
+        return MxNetUtils.getFeatures(frame, landmarks, flipMode);
+    }
+
+    /**
+     * Nothing to release: the predictors belong to the process-wide {@link FacePredictor} pool,
+     * which the live classifier keeps using and the activity shuts down.
+     */
+    @Override
+    public void close() {
+    }
+}
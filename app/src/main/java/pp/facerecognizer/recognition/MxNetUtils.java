@@ -2,7 +2,6 @@ package pp.facerecognizer.recognition;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.util.Log;
 
 import org.dmlc.mxnet.Predictor;
@@ -12,17 +11,45 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import pp.facerecognizer.align.FacePreprocess;
+
 /**
  * Created by zhao on 2016/11/17.
  */
 public class MxNetUtils {
 
+    private static final int BYTE_SIZE_OF_FLOAT = 4;
+
+    // Direct input/output buffers for one batched forward, owned by the calling thread.
+    private static class BatchBuffers {
+        final FloatBuffer input = allocateFloats(FacePredictor.MAX_BATCH * FacePredictor.IMAGE_SIZE);
+        final FloatBuffer output = allocateFloats(FacePredictor.MAX_BATCH * FacePredictor.EMBEDDING_SIZE);
+    }
+
+    // Written into the unused rows of a padded batch.
+    private static final float[] PADDING = new float[FacePredictor.IMAGE_SIZE];
+
+    private static final ThreadLocal<BatchBuffers> batchBuffers = new ThreadLocal<BatchBuffers>() {
+        @Override
+        protected BatchBuffers initialValue() {
+            return new BatchBuffers();
+        }
+    };
+
     private MxNetUtils() {
     }
 
+    static FloatBuffer allocateFloats(int count) {
+        return ByteBuffer.allocateDirect(count * BYTE_SIZE_OF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
     public static float identifyImage(final Bitmap srcBitmap, final Bitmap dstBitmap) {
 
         float[] srcFeatures = getFeatures(srcBitmap);
@@ -34,30 +61,8 @@ public class MxNetUtils {
     }
 
     public static float[] getGrayArray(Bitmap bitmap) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(bitmap.getByteCount());
-        bitmap.copyPixelsToBuffer(byteBuffer);
-        byte[] bytes = byteBuffer.array();
-
-        //float[] gray = new float[128 * 128];
-        float[] gray = new float[3 * 112 * 112];
-
-        for (int i = 0; i < bytes.length; i += 4) {
-            int j = i / 4;
-            float r = (float) (((int) (bytes[i + 0])) & 0xFF);
-            float g = (float) (((int) (bytes[i + 1])) & 0xFF);
-            float b = (float) (((int) (bytes[i + 2])) & 0xFF);
-
-            //int temp = (int) (0.299 * r + 0.587 * g + 0.114 * b);
-            //gray[j] = (float) (temp / 255.0);
-
-//            gray[j] = (float) (r);
-//            gray[j+1] = (float) (g);
-//            gray[j+2] = (float) (b);
-
-            gray[0 * 112 * 112 + j] = (float)(r);
-            gray[1 * 112 * 112 + j] = (float)(g);
-            gray[2 * 112 * 112 + j] = (float)(b);
-        }
+        float[] gray = new float[FacePredictor.IMAGE_SIZE];
+        FaceTensors.write(bitmap, false, gray, 0);
         return gray;
     }
 
@@ -82,44 +87,130 @@ public class MxNetUtils {
         return arr;
     }
 
-    public static float[] getFeatures(Bitmap srcBitmap) {
-        float[] srcGray = getGrayArray(srcBitmap);
-        long t = System.currentTimeMillis();
-        Predictor predictor = FacePredictor.getPredictor();
-        predictor.forward("data", srcGray);
-        float[] result_org = predictor.getOutput(0);
-
-        // 水平翻转再预测
-        Matrix m = new Matrix();
-        m.setScale(-1, 1);//水平翻转
-        Bitmap reversePic = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth(), srcBitmap.getHeight(), m, true);
-        float[] _srcGray = getGrayArray(reversePic);
-        predictor.forward("data", _srcGray);
-        float[] result_flip = predictor.getOutput(0);
-
-        // 增加图片翻转后的编码
-//        float[] _srcGray = do_flip(srcGray);
-
-        float[] result = new float[128];
-        for (int i = 0; i < result_org.length; i++){
-            result[i] = result_org[i] + result_flip[i];
+    /**
+     * L2-normalizes each {@code size}-float row of a row-major block in place.
+     */
+    public static void normalizeRows(float[] block, int size) {
+        for (int offset = 0; offset < block.length; offset += size) {
+            float l2 = 0.f;
+            for (int j = 0; j < size; j++) {
+                l2 += block[offset + j] * block[offset + j];
+            }
+            l2 = (float) Math.sqrt(l2);
+            for (int j = 0; j < size; j++) {
+                block[offset + j] /= l2;
+            }
         }
+    }
 
-        // 归一化
-        float l2 = 0.f;
-        for(float r : result){
-            l2 = l2 + (float)Math.pow(r,2);
-        }
-        l2 = (float)Math.sqrt(l2);
-        for(int i=0; i<result.length; i++){
-            result[i] = result[i]/l2;
+    public static float[] getFeatures(Bitmap srcBitmap) {
+        return getFeatures(new Bitmap[]{srcBitmap}, FlipMode.SECOND_PASS);
+    }
+
+    public static float[] getFeatures(Bitmap[] faces) {
+        return getFeatures(faces, FlipMode.FUSED_BATCH);
+    }
+
+    /**
+     * Embeds several aligned faces with as few forwards as possible. Faces are batched up to
+     * MAX_BATCH images per forward and converted straight into the direct input buffer; mirrored
+     * copies are made during that conversion, not on a Bitmap.
+     *
+     * @return an N x EMBEDDING_SIZE row-major block of L2-normalized embeddings.
+     */
+    public static float[] getFeatures(Bitmap[] faces, FlipMode flipMode) {
+        return getFeatures(faces.length, (face, original, mirror, input) -> {
+            if (original) FaceTensors.write(faces[face], false, input);
+            if (mirror) FaceTensors.write(faces[face], true, input);
+        }, flipMode);
+    }
+
+    /**
+     * Like {@link #getFeatures(Bitmap[], FlipMode)}, but aligns each face of {@code frame} by its
+     * landmarks natively, straight into the input buffer, without an aligned Bitmap in between.
+     */
+    public static float[] getFeatures(Bitmap frame, float[][][] landmarks, FlipMode flipMode) {
+        return getFeatures(landmarks.length, (face, original, mirror, input) ->
+                FacePreprocess.facePreprocess(frame, landmarks[face], input, original, mirror), flipMode);
+    }
+
+    // Writes the original and/or mirrored CHW image of one face at the input buffer's position.
+    private interface FaceSource {
+        void write(int face, boolean original, boolean mirror, FloatBuffer input);
+    }
+
+    private static float[] getFeatures(int faceCount, FaceSource source, FlipMode flipMode) {
+        float[] result = new float[faceCount * FacePredictor.EMBEDDING_SIZE];
+        if (faceCount == 0) return result;
+
+        long t = System.currentTimeMillis();
+        switch (flipMode) {
+            case NONE:
+                forwardImages(faceCount, source, true, false, result);
+                break;
+            case SECOND_PASS:
+                forwardImages(faceCount, source, true, false, result);
+                forwardImages(faceCount, source, false, true, result);
+                break;
+            case FUSED_BATCH:
+                forwardImages(faceCount, source, true, true, result);
+                break;
         }
 
+        normalizeRows(result, FacePredictor.EMBEDDING_SIZE);
 
-        Log.d("verification time", String.valueOf(System.currentTimeMillis() - t));
+        Log.d("verification time", faceCount + " faces " + flipMode + " " + (System.currentTimeMillis() - t));
         return result;
     }
 
+    /**
+     * Runs the original and/or mirrored image of every face through batched forwards and adds
+     * each output to its face's row of {@code result}. With both, image 2i is face i and image
+     * 2i + 1 its mirror, and a face never straddles two forwards. Each forward is padded up to
+     * the next batch size and the outputs of the padding are dropped.
+     */
+    private static void forwardImages(int faceCount, FaceSource source, boolean original, boolean mirror,
+                                      float[] result) {
+        final int size = FacePredictor.EMBEDDING_SIZE;
+
+        BatchBuffers buffers = batchBuffers.get();
+        FloatBuffer input = buffers.input;
+        FloatBuffer output = buffers.output;
+
+        int perFace = (original ? 1 : 0) + (mirror ? 1 : 0);
+        int facesPerForward = FacePredictor.MAX_BATCH / perFace;
+        for (int first = 0; first < faceCount; first += facesPerForward) {
+            int count = Math.min(facesPerForward, faceCount - first);
+            int images = count * perFace;
+            int padded = FacePredictor.paddedBatch(images);
+
+            input.clear();
+            for (int i = 0; i < count; i++) {
+                source.write(first + i, original, mirror, input);
+            }
+            for (int i = images; i < padded; i++) {
+                input.put(PADDING);
+            }
+            input.flip();
+
+            output.clear();
+            Predictor predictor = FacePredictor.acquire(images);
+            try {
+                predictor.forward("data", input);
+                predictor.getOutput(0, output);
+            } finally {
+                FacePredictor.release(predictor);
+            }
+
+            for (int i = 0; i < images; i++) {
+                int offset = (first + i / perFace) * size;
+                for (int j = 0; j < size; j++) {
+                    result[offset + j] += output.get(i * size + j);
+                }
+            }
+        }
+    }
+
     public static float calCosineSimilarity(float[] a, float[] b) {
 
         if (a.length != b.length) {
@@ -0,0 +1,275 @@
+package pp.facerecognizer.recognition;
+
+import org.dmlc.mxnet.Predictor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Keeps MXNet predictors alive between embeddings instead of rebuilding one per face.
+ *
+ * A predictor is created lazily for each worker thread and input shape, borrowed around
+ * forward/getOutput with {@link #acquire(int[])} / {@link #release(Predictor)}, and freed
+ * in {@link #shutdown()}. The first predictor of a thread loads the weights; its other shapes
+ * are reshaped from it and share them, and only the {@link #MAX_SHAPES_PER_THREAD} most recently
+ * used shapes are kept. Predictors of threads that have died or called {@link #detach()} go back
+ * to an idle list and are adopted by the next thread without predictors, so recreating the
+ * inference HandlerThread neither leaks native handles nor rebuilds them.
+ */
+public class PredictorPool {
+    private static final Logger LOGGER = new Logger();
+
+    // Each shape holds its own input and activations, only the weights are shared. One per padded
+    // batch size of FacePredictor, so a steady mix of face counts never reshapes.
+    public static final int MAX_SHAPES_PER_THREAD = 4;
+
+    private static final String INPUT_KEY = "data";
+    private static final int BYTE_SIZE_OF_FLOAT = 4;
+
+    // One loaded copy of the params, counted while any predictor uses it.
+    private static class Weights {
+        int users;
+    }
+
+    private static class Entry {
+        final String key;
+        final Predictor predictor;
+        final Weights weights;
+        final long inputBytes;
+        boolean borrowed;
+        boolean retired;
+
+        Entry(String key, Predictor predictor, Weights weights, long inputBytes) {
+            this.key = key;
+            this.predictor = predictor;
+            this.weights = weights;
+            this.inputBytes = inputBytes;
+        }
+    }
+
+    private final byte[] symbol;
+    private final ByteBuffer params;
+    private final Predictor.Device device;
+
+    // per thread, shape -> predictor in access order, least recently used first
+    private final Map<Thread, LinkedHashMap<String, Entry>> predictors = new HashMap<>();
+    private final Map<Predictor, Entry> borrowed = new HashMap<>();
+    private final List<Entry> idle = new ArrayList<>();
+
+    private int aliveCount = 0;
+    private long nativeBytes = 0;
+
+    public PredictorPool(byte[] symbol, ByteBuffer params, Predictor.Device device) {
+        this.symbol = symbol;
+        this.params = params;
+        this.device = device;
+    }
+
+    /**
+     * Borrows the calling thread's predictor for the given input shape, creating it on first use.
+     * Every call must be paired with {@link #release(Predictor)}.
+     */
+    public Predictor acquire(int[] shape) {
+        Thread thread = Thread.currentThread();
+        String key = Arrays.toString(shape);
+        Entry source;
+        synchronized (this) {
+            Entry entry = lookup(thread, key);
+            if (entry != null) return borrow(thread, entry);
+
+            // pinned like a borrowed predictor, so that a shutdown cannot free it meanwhile
+            source = anyFree(shapesOf(thread));
+            if (source != null) source.borrowed = true;
+        }
+
+        // Built without holding the pool: loading the model takes long and other threads keep
+        // borrowing their predictors meanwhile. Only this thread installs predictors for itself.
+        Entry created;
+        try {
+            created = create(key, shape, source);
+        } finally {
+            if (source != null) {
+                synchronized (this) {
+                    source.borrowed = false;
+                    if (source.retired) free(source);
+                }
+            }
+        }
+
+        boolean shared = source != null && created.weights == source.weights;
+        synchronized (this) {
+            aliveCount++;
+            nativeBytes += created.inputBytes;
+            if (created.weights.users++ == 0) nativeBytes += params.remaining();
+            LOGGER.i("Created predictor %s for %s (%s weights), %d alive, %d bytes", key,
+                    thread.getName(), shared ? "shared" : "loaded", aliveCount, nativeBytes);
+
+            LinkedHashMap<String, Entry> shapes = shapesOf(thread);
+            if (shapes.size() >= MAX_SHAPES_PER_THREAD) evictEldest(shapes);
+            shapes.put(key, created);
+            return borrow(thread, created);
+        }
+    }
+
+    public synchronized void release(Predictor predictor) {
+        Entry entry = borrowed.remove(predictor);
+        if (entry == null) return;
+
+        entry.borrowed = false;
+        if (entry.retired) free(entry);
+    }
+
+    /**
+     * Hands the calling thread's predictors over to the next thread that needs one, e.g. after a
+     * warm-up thread has primed them.
+     */
+    public synchronized void detach() {
+        Map<String, Entry> shapes = predictors.remove(Thread.currentThread());
+        if (shapes != null) makeIdle(shapes);
+    }
+
+    /**
+     * Frees every predictor. Predictors still borrowed are freed as soon as they are released.
+     * The pool stays usable and creates new predictors on the next acquire.
+     */
+    public synchronized void shutdown() {
+        for (Map<String, Entry> shapes : predictors.values()) {
+            retire(shapes.values());
+        }
+        predictors.clear();
+        retire(idle);
+        idle.clear();
+        LOGGER.i("Predictor pool shut down, %d alive, %d bytes", aliveCount, nativeBytes);
+    }
+
+    /** Number of native predictors that have been created and not yet freed. */
+    public synchronized int getAliveCount() {
+        return aliveCount;
+    }
+
+    /**
+     * Estimated native memory held by the live predictors: each loaded copy of the weights plus
+     * the input tensor of each predictor.
+     */
+    public synchronized long getNativeBytes() {
+        return nativeBytes;
+    }
+
+    // The thread's predictor for the shape, null if it has none yet. A thread without any
+    // predictors first adopts the idle ones that share weights.
+    private Entry lookup(Thread thread, String key) {
+        pruneDeadThreads();
+
+        LinkedHashMap<String, Entry> shapes = shapesOf(thread);
+        if (shapes.isEmpty() && !idle.isEmpty()) {
+            Weights weights = idle.get(idle.size() - 1).weights;
+            Iterator<Entry> it = idle.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.weights == weights && !shapes.containsKey(entry.key)
+                        && shapes.size() < MAX_SHAPES_PER_THREAD) {
+                    shapes.put(entry.key, entry);
+                    it.remove();
+                }
+            }
+        }
+        return shapes.get(key);
+    }
+
+    private LinkedHashMap<String, Entry> shapesOf(Thread thread) {
+        LinkedHashMap<String, Entry> shapes = predictors.get(thread);
+        if (shapes == null) {
+            shapes = new LinkedHashMap<>(MAX_SHAPES_PER_THREAD * 2, 0.75f, true);
+            predictors.put(thread, shapes);
+        }
+        return shapes;
+    }
+
+    private static Entry anyFree(Map<String, Entry> shapes) {
+        for (Entry entry : shapes.values()) {
+            if (!entry.borrowed) return entry;
+        }
+        return null;
+    }
+
+    private Predictor borrow(Thread thread, Entry entry) {
+        if (entry.borrowed)
+            throw new IllegalStateException("Predictor " + entry.key + " already borrowed by " + thread.getName());
+
+        entry.borrowed = true;
+        borrowed.put(entry.predictor, entry);
+        return entry.predictor;
+    }
+
+    // Frees the least recently used shape of the thread that is not borrowed.
+    private void evictEldest(Map<String, Entry> shapes) {
+        Iterator<Entry> it = shapes.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.borrowed) continue;
+            it.remove();
+            entry.retired = true;
+            free(entry);
+            return;
+        }
+    }
+
+    private void pruneDeadThreads() {
+        Iterator<Map.Entry<Thread, LinkedHashMap<String, Entry>>> it = predictors.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Thread, LinkedHashMap<String, Entry>> e = it.next();
+            if (!e.getKey().isAlive()) {
+                makeIdle(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private void makeIdle(Map<String, Entry> shapes) {
+        for (Entry entry : shapes.values()) {
+            if (entry.borrowed) {
+                // still in use, free it once it comes back
+                entry.retired = true;
+                continue;
+            }
+            idle.add(entry);
+        }
+    }
+
+    private void retire(Iterable<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.retired = true;
+            if (!entry.borrowed) free(entry);
+        }
+    }
+
+    // Reshapes source to the new shape, sharing its weights, or loads the weights when there is
+    // no source or reshaping is unsupported. The caller counts the predictor once installed.
+    private Entry create(String key, int[] shape, Entry source) {
+        Predictor.InputNode[] nodes = {new Predictor.InputNode(INPUT_KEY, shape)};
+
+        long inputBytes = BYTE_SIZE_OF_FLOAT;
+        for (int dim : shape) inputBytes *= dim;
+
+        Predictor reshaped = source == null ? null : source.predictor.reshape(nodes);
+        if (reshaped != null) return new Entry(key, reshaped, source.weights, inputBytes);
+
+        Predictor predictor = new Predictor(symbol, params, device, nodes);
+        return new Entry(key, predictor, new Weights(), inputBytes);
+    }
+
+    private void free(Entry entry) {
+        entry.predictor.free();
+        aliveCount--;
+        nativeBytes -= entry.inputBytes;
+        if (--entry.weights.users == 0) nativeBytes -= params.remaining();
+    }
+}
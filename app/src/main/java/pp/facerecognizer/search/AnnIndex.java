@@ -0,0 +1,40 @@
+package pp.facerecognizer.search;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An approximate nearest-neighbour index over gallery embeddings, used by {@link Search} in place
+ * of the linear scan once the gallery is too large to scan per face.
+ */
+public interface AnnIndex {
+
+    /**
+     * Inserts the embedding of {@code label}, replacing the label's previous embedding if any.
+     */
+    void add(int label, float[] embedding);
+
+    /** Removes {@code label}; unknown labels are ignored. */
+    void remove(int label);
+
+    /**
+     * The (approximately) {@code k} most similar labels to a unit-length query, best first.
+     */
+    SearchResult search(float[] query, int k);
+
+    /** Number of labels in the index. */
+    int size();
+
+    /** Bytes held by the index, trained tables included. */
+    long bytes();
+
+    void save(File file) throws IOException;
+
+    /**
+     * An empty index configured like this one, which {@link Search#compact} refills with the
+     * live identities; null when removals leave nothing behind and no rebuild is needed.
+     */
+    default AnnIndex emptyCopy() {
+        return null;
+    }
+}
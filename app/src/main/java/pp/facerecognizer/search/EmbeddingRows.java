@@ -0,0 +1,411 @@
+package pp.facerecognizer.search;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The gallery's embeddings, one row per identity, stored at a given {@link Precision}.
+ *
+ * Rows are L2-normalized before they are stored, so the similarity kernel is a single dot
+ * product against a unit-length query, with no norms or logging per comparison.
+ */
+public abstract class EmbeddingRows {
+
+    protected final int dim;
+    protected int size;
+
+    protected EmbeddingRows(int dim) {
+        this.dim = dim;
+    }
+
+    public static EmbeddingRows create(Precision precision, int dim) {
+        return create(precision, dim, 0);
+    }
+
+    /**
+     * @param capacity rows allocated up front, e.g. the samples of one {@link IdentityTemplate},
+     *                 which never grows.
+     */
+    public static EmbeddingRows create(Precision precision, int dim, int capacity) {
+        switch (precision) {
+            case FP16:
+                return new Fp16Rows(dim, capacity);
+            case INT8:
+                return new Int8Rows(dim, capacity);
+            default:
+                return new FloatRows(dim, capacity);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dim() {
+        return dim;
+    }
+
+    /**
+     * Replaces row {@code row}, or appends a row when {@code row == size()}.
+     */
+    public abstract void set(int row, float[] embedding);
+
+    /**
+     * Like {@link #set(int, float[])}, from the {@code dim} floats at the position of
+     * {@code embedding}, e.g. a view of a mapped {@link GalleryFile}.
+     */
+    public void set(int row, FloatBuffer embedding) {
+        float[] values = new float[dim];
+        embedding.duplicate().get(values);
+        set(row, values);
+    }
+
+    /**
+     * Cosine similarity between row {@code row} and a unit-length query.
+     */
+    public abstract float cosine(int row, float[] query);
+
+    /** Decodes row {@code row} into a new array. */
+    public abstract float[] get(int row);
+
+    /** Bytes held by the stored rows. */
+    public abstract long bytes();
+
+    /** An independent copy, so a published gallery can be changed without locking its readers. */
+    public abstract EmbeddingRows copy();
+
+    /** A copy without the rows set in {@code removed}, the remaining rows moved up in order. */
+    public abstract EmbeddingRows compact(BitSet removed);
+
+    public abstract Precision precision();
+
+    protected void checkRow(int row, float[] embedding) {
+        if (row < 0 || row > size)
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        if (embedding.length != dim)
+            throw new IllegalArgumentException("embedding has " + embedding.length + " dims, expected " + dim);
+    }
+
+    protected int grow(int capacity) {
+        return Math.max(16, capacity * 2);
+    }
+
+    /**
+     * Dot product of {@code dim} floats of {@code rows} starting at {@code offset} with
+     * {@code query}, unrolled by four with independent accumulators.
+     */
+    static float dot(float[] rows, int offset, float[] query, int dim) {
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int i = 0;
+        for (; i + 3 < dim; i += 4) {
+            s0 += rows[offset + i] * query[i];
+            s1 += rows[offset + i + 1] * query[i + 1];
+            s2 += rows[offset + i + 2] * query[i + 2];
+            s3 += rows[offset + i + 3] * query[i + 3];
+        }
+        for (; i < dim; i++) {
+            s0 += rows[offset + i] * query[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static float[] unit(float[] embedding) {
+        float l2 = 0f;
+        for (float v : embedding) l2 += v * v;
+        float[] unit = new float[embedding.length];
+        if (l2 == 0f) return unit;
+        float inv = (float) (1.0 / Math.sqrt(l2));
+        for (int i = 0; i < embedding.length; i++) unit[i] = embedding[i] * inv;
+        return unit;
+    }
+
+    /**
+     * One flat row-major float[] of L2-normalized rows, so a score is a plain dot product over
+     * contiguous memory.
+     */
+    static class FloatRows extends EmbeddingRows {
+        private float[] data = new float[0];
+
+        FloatRows(int dim) {
+            super(dim);
+        }
+
+        FloatRows(int dim, int capacity) {
+            super(dim);
+            data = new float[capacity * dim];
+        }
+
+        @Override
+        public void set(int row, float[] embedding) {
+            checkRow(row, embedding);
+            if (row * dim == data.length) {
+                data = Arrays.copyOf(data, grow(row) * dim);
+            }
+            System.arraycopy(unit(embedding), 0, data, row * dim, dim);
+            if (row == size) size++;
+        }
+
+        @Override
+        public float cosine(int row, float[] query) {
+            return dot(data, row * dim, query, dim);
+        }
+
+        @Override
+        public float[] get(int row) {
+            return Arrays.copyOfRange(data, row * dim, (row + 1) * dim);
+        }
+
+        @Override
+        public long bytes() {
+            return (long) size * dim * 4;
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.FLOAT32;
+        }
+
+        @Override
+        public EmbeddingRows copy() {
+            FloatRows copy = new FloatRows(dim);
+            copy.data = data.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        @Override
+        public EmbeddingRows compact(BitSet removed) {
+            FloatRows compacted = new FloatRows(dim);
+            compacted.data = new float[(size - removed.cardinality()) * dim];
+            for (int row = removed.nextClearBit(0); row < size; row = removed.nextClearBit(row + 1)) {
+                System.arraycopy(data, row * dim, compacted.data, compacted.size++ * dim, dim);
+            }
+            return compacted;
+        }
+    }
+
+    /**
+     * Symmetric int8 with one scale per row: {@code v[i] ~= data[i] * scale}.
+     */
+    static class Int8Rows extends EmbeddingRows {
+        private byte[] data = new byte[0];
+        private float[] scales = new float[0];
+
+        Int8Rows(int dim) {
+            super(dim);
+        }
+
+        Int8Rows(int dim, int capacity) {
+            super(dim);
+            data = new byte[capacity * dim];
+            scales = new float[capacity];
+        }
+
+        @Override
+        public void set(int row, float[] embedding) {
+            checkRow(row, embedding);
+            if (row == scales.length) {
+                int capacity = grow(scales.length);
+                scales = Arrays.copyOf(scales, capacity);
+                data = Arrays.copyOf(data, capacity * dim);
+            }
+
+            float[] unit = unit(embedding);
+            float maxAbs = 0f;
+            for (float v : unit) maxAbs = Math.max(maxAbs, Math.abs(v));
+            float scale = maxAbs / 127f;
+            float inv = scale == 0f ? 0f : 1f / scale;
+
+            int offset = row * dim;
+            for (int i = 0; i < dim; i++) {
+                data[offset + i] = (byte) Math.round(unit[i] * inv);
+            }
+            scales[row] = scale;
+            if (row == size) size++;
+        }
+
+        @Override
+        public float cosine(int row, float[] query) {
+            final byte[] data = this.data;
+            int offset = row * dim;
+            float dot = 0f;
+            for (int i = 0; i < dim; i++) {
+                dot += data[offset + i] * query[i];
+            }
+            return dot * scales[row];
+        }
+
+        @Override
+        public float[] get(int row) {
+            float[] embedding = new float[dim];
+            int offset = row * dim;
+            for (int i = 0; i < dim; i++) {
+                embedding[i] = data[offset + i] * scales[row];
+            }
+            return embedding;
+        }
+
+        @Override
+        public long bytes() {
+            return (long) size * (dim + 4);
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.INT8;
+        }
+
+        @Override
+        public EmbeddingRows copy() {
+            Int8Rows copy = new Int8Rows(dim);
+            copy.data = data.clone();
+            copy.scales = scales.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        @Override
+        public EmbeddingRows compact(BitSet removed) {
+            Int8Rows compacted = new Int8Rows(dim);
+            int live = size - removed.cardinality();
+            compacted.data = new byte[live * dim];
+            compacted.scales = new float[live];
+            for (int row = removed.nextClearBit(0); row < size; row = removed.nextClearBit(row + 1)) {
+                System.arraycopy(data, row * dim, compacted.data, compacted.size * dim, dim);
+                compacted.scales[compacted.size++] = scales[row];
+            }
+            return compacted;
+        }
+    }
+
+    /**
+     * IEEE 754 half precision, decoded through a 64K-entry lookup table.
+     */
+    static class Fp16Rows extends EmbeddingRows {
+        private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+        static {
+            for (int h = 0; h < HALF_TO_FLOAT.length; h++) {
+                HALF_TO_FLOAT[h] = halfToFloat(h);
+            }
+        }
+
+        private short[] data = new short[0];
+
+        Fp16Rows(int dim) {
+            super(dim);
+        }
+
+        Fp16Rows(int dim, int capacity) {
+            super(dim);
+            data = new short[capacity * dim];
+        }
+
+        @Override
+        public void set(int row, float[] embedding) {
+            checkRow(row, embedding);
+            if (row * dim == data.length) {
+                data = Arrays.copyOf(data, grow(row) * dim);
+            }
+
+            float[] unit = unit(embedding);
+            int offset = row * dim;
+            for (int i = 0; i < dim; i++) {
+                data[offset + i] = floatToHalf(unit[i]);
+            }
+            if (row == size) size++;
+        }
+
+        @Override
+        public float cosine(int row, float[] query) {
+            final short[] data = this.data;
+            int offset = row * dim;
+            float dot = 0f;
+            for (int i = 0; i < dim; i++) {
+                dot += HALF_TO_FLOAT[data[offset + i] & 0xffff] * query[i];
+            }
+            return dot;
+        }
+
+        @Override
+        public float[] get(int row) {
+            float[] embedding = new float[dim];
+            int offset = row * dim;
+            for (int i = 0; i < dim; i++) {
+                embedding[i] = HALF_TO_FLOAT[data[offset + i] & 0xffff];
+            }
+            return embedding;
+        }
+
+        @Override
+        public long bytes() {
+            return (long) size * dim * 2;
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.FP16;
+        }
+
+        @Override
+        public EmbeddingRows copy() {
+            Fp16Rows copy = new Fp16Rows(dim);
+            copy.data = data.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        @Override
+        public EmbeddingRows compact(BitSet removed) {
+            Fp16Rows compacted = new Fp16Rows(dim);
+            compacted.data = new short[(size - removed.cardinality()) * dim];
+            for (int row = removed.nextClearBit(0); row < size; row = removed.nextClearBit(row + 1)) {
+                System.arraycopy(data, row * dim, compacted.data, compacted.size++ * dim, dim);
+            }
+            return compacted;
+        }
+
+        // round-to-nearest float -> half, android.util.Half needs API 26
+        static short floatToHalf(float f) {
+            int bits = Float.floatToIntBits(f);
+            int sign = (bits >>> 16) & 0x8000;
+            int value = (bits & 0x7fffffff) + 0x1000;
+
+            if (value >= 0x47800000) {
+                if ((bits & 0x7fffffff) >= 0x47800000) {
+                    if (value < 0x7f800000) return (short) (sign | 0x7c00);
+                    return (short) (sign | 0x7c00 | (bits & 0x007fffff) >>> 13);
+                }
+                return (short) (sign | 0x7bff);
+            }
+            if (value >= 0x38800000) return (short) (sign | (value - 0x38000000) >>> 13);
+            if (value < 0x33000000) return (short) sign;
+
+            // subnormal half
+            value = (bits & 0x7fffffff) >>> 23;
+            return (short) (sign | ((bits & 0x7fffff | 0x800000)
+                    + (0x800000 >>> (value - 102)) >>> (126 - value)));
+        }
+
+        static float halfToFloat(int half) {
+            int mantissa = half & 0x03ff;
+            int exponent = half & 0x7c00;
+
+            if (exponent == 0x7c00) {
+                exponent = 0x3fc00;
+            } else if (exponent != 0) {
+                exponent += 0x1c000;
+            } else if (mantissa != 0) {
+                // normalize a subnormal half
+                exponent = 0x1c400;
+                do {
+                    mantissa <<= 1;
+                    exponent -= 0x400;
+                } while ((mantissa & 0x400) == 0);
+                mantissa &= 0x3ff;
+            }
+            return Float.intBitsToFloat((half & 0x8000) << 16 | (exponent | mantissa) << 13);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package pp.facerecognizer.search;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.recognition.FacePredictor;
+
+/**
+ * One named watchlist, e.g. staff, VIP or blocked: its people, its {@link Search} (and so its
+ * own index), its {@link GalleryFile} and its match threshold. Galleries are opened and queried
+ * together through a {@link GalleryRegistry}.
+ *
+ * Queries need no lock, see {@link Search}; changes are serialized per gallery.
+ */
+public class Gallery implements Closeable {
+    private static final Logger LOGGER = new Logger();
+
+    // from this many identities queries go through an HnswIndex instead of the exact scan
+    static final int HNSW_MIN_IDENTITIES = 50000;
+    // from this many an IvfPqIndex replaces it, as the graph keeps a float32 copy of every centroid
+    static final int IVF_PQ_MIN_IDENTITIES = 200000;
+    // identities the IVF-PQ tables are trained on
+    private static final int IVF_PQ_TRAINING_IDENTITIES = 20000;
+
+    private final String name;
+    private final Search search;
+    // label -> person, null for deleted labels, which are never reused
+    private final List<String> classNames = new CopyOnWriteArrayList<>();
+    private GalleryFile file;
+    private volatile float threshold;
+    // the size threshold of the index attached or being built, 0 for none; guarded by this
+    private int indexedFrom;
+
+    Gallery(String name, Search search, float threshold) {
+        this.name = name;
+        this.search = search;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Opens the gallery stored in {@code file}, creating it if needed. A file written for
+     * another model, or corrupt beyond its tail, is renamed to {@code .stale} and replaced by an
+     * empty gallery; if even that fails the gallery only lives in memory.
+     */
+    static Gallery open(String name, File file, Precision precision, float threshold) {
+        Gallery gallery = new Gallery(name, new Search(precision), threshold);
+        long start = System.currentTimeMillis();
+        try {
+            gallery.load(file);
+        } catch (IOException e) {
+            LOGGER.e(e, "Gallery %s unusable, starting an empty one", file);
+            file.renameTo(new File(file.getPath() + ".stale"));
+            try {
+                gallery.load(file);
+            } catch (IOException again) {
+                LOGGER.e(again, "Gallery %s not saved", name);
+            }
+        }
+        LOGGER.i("Loaded gallery %s: %d identities in %dms",
+                name, gallery.classNames.size(), System.currentTimeMillis() - start);
+        synchronized (gallery) {
+            gallery.indexIfLarge();
+        }
+        return gallery;
+    }
+
+    private void load(File path) throws IOException {
+        GalleryFile opened = GalleryFile.open(path, FacePredictor.EMBEDDING_SIZE, FacePredictor.MODEL_VERSION);
+        classNames.clear();
+        // published as one snapshot once the whole file is read
+        final Map<Integer, List<FloatBuffer>> enrollments = new LinkedHashMap<>();
+        final List<String> names = new ArrayList<>();
+        opened.replay(new GalleryFile.Visitor() {
+            @Override
+            public void onName(int label, String name) {
+                // labels without a name record, e.g. whose append failed, stay taken but empty
+                while (names.size() <= label) names.add(null);
+                names.set(label, name);
+            }
+
+            @Override
+            public void onEnroll(int label, List<FloatBuffer> embeddings) {
+                enrollments.put(label, embeddings);
+            }
+
+            @Override
+            public void onDelete(int label) {
+                while (names.size() <= label) names.add(null);
+                names.set(label, null);
+                enrollments.remove(label);
+            }
+
+            @Override
+            public void onRelabel(int from, int to) {
+                List<FloatBuffer> moved = enrollments.remove(from);
+                if (moved != null) enrollments.put(to, moved);
+            }
+        });
+        classNames.addAll(names);
+        search.storageMapped(enrollments);
+        file = opened;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Search getSearch() {
+        return search;
+    }
+
+    /** Minimum cosine similarity for a match in this gallery. */
+    public float getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /** The person of {@code label}, or null if the label was deleted or never added. */
+    public String getPerson(int label) {
+        return label >= 0 && label < classNames.size() ? classNames.get(label) : null;
+    }
+
+    /** One more than the highest label handed out, deleted ones included. */
+    public int getLabelCount() {
+        return classNames.size();
+    }
+
+    /** Every person not deleted, in label order. */
+    public List<String> getPeople() {
+        List<String> people = new ArrayList<>();
+        for (String person : classNames) {
+            if (person != null) people.add(person);
+        }
+        return people;
+    }
+
+    /**
+     * The label of the person at {@code position} of {@link #getPeople}; labels of deleted
+     * people are never reused, so the two can differ.
+     */
+    public int getLabel(int position) {
+        for (int label = 0; label < classNames.size(); label++) {
+            if (classNames.get(label) != null && position-- == 0) return label;
+        }
+        return -1;
+    }
+
+    /**
+     * The embeddings {@code label} is enrolled with, or null if it is not enrolled. They are read
+     * back as saved, in float32, whatever precision the search keeps them at.
+     */
+    public List<float[]> getSamples(int label) throws IOException {
+        GalleryFile saved = file;
+        if (saved != null) return saved.readEnrollment(label);
+        IdentityTemplate template = search.getTemplate(label);
+        return template == null ? null : template.getSamples();
+    }
+
+    /** Adds a person without enrolling them yet; returns their label. */
+    public synchronized int addPerson(String person) {
+        int label = classNames.size();
+        classNames.add(person);
+        if (file != null) {
+            try {
+                file.appendName(label, person);
+            } catch (IOException e) {
+                LOGGER.e(e, "Failed to save name %s", person);
+            }
+        }
+        return label;
+    }
+
+    /**
+     * Supplies the people of a bulk add a chunk at a time, so they need not all be in memory.
+     */
+    public interface People {
+        /**
+         * Fills the empty lists with the next chunk of people and their embeddings.
+         *
+         * @return false once there are no people left.
+         */
+        boolean next(List<String> people, List<List<float[]>> embeddings) throws IOException;
+    }
+
+    /**
+     * Adds and enrolls people in bulk, see {@link GalleryTransfer}. Each chunk is appended to
+     * the file as it is read, but queries only see the people, in one gallery snapshot, once
+     * every chunk has been read. If {@code source} fails the file is cut back and the gallery is
+     * left as it was.
+     *
+     * @return the label of the first person; the others follow in order.
+     */
+    public synchronized int addAll(People source) throws IOException {
+        int first = classNames.size();
+        Search.Batch batch = search.newBatch();
+        List<String> added = new ArrayList<>();
+        long mark = file == null ? -1 : file.mark();
+
+        List<String> people = new ArrayList<>();
+        List<List<float[]>> embeddings = new ArrayList<>();
+        try {
+            while (source.next(people, embeddings)) {
+                int label = first + added.size();
+                for (int i = 0; i < people.size(); i++) batch.add(label + i, embeddings.get(i));
+                if (file != null) file.appendAll(label, people, embeddings);
+                added.addAll(people);
+                people.clear();
+                embeddings.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (file != null) {
+                try {
+                    file.rollback(mark);
+                } catch (IOException again) {
+                    LOGGER.e(again, "Failed to roll back gallery %s", name);
+                }
+            }
+            throw e;
+        }
+
+        classNames.addAll(added);
+        batch.publish();
+        indexIfLarge();
+        if (file == null) return first;
+        try {
+            compactFileIfNeeded();
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to compact gallery %s", name);
+        }
+        return first;
+    }
+
+    /** Enrolls (or re-enrolls) {@code label} and saves the enrollment. */
+    public synchronized void enroll(int label, ArrayList<float[]> embeddings) {
+        search.storage(label, embeddings);
+        indexIfLarge();
+        if (file == null) return;
+        try {
+            file.appendEnroll(label, embeddings);
+            compactFileIfNeeded();
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to save enrollment of %d", label);
+        }
+    }
+
+    /**
+     * Removes a person and their enrollment; queries stop returning them right away, see
+     * {@link Search#delete}.
+     */
+    public synchronized void delete(int label) {
+        if (getPerson(label) == null) return;
+        search.delete(label);
+        classNames.set(label, null);
+        if (file == null) return;
+        try {
+            file.appendDelete(label);
+            compactFileIfNeeded();
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to save deletion of %d", label);
+        }
+    }
+
+    /**
+     * Moves the enrollment of {@code from} to the person {@code to}, e.g. after photos were
+     * enrolled under the wrong name. {@code from} stays in the gallery, not enrolled.
+     */
+    public synchronized void relabel(int from, int to) {
+        if (getPerson(to) == null || !search.relabel(from, to) || file == null) return;
+        try {
+            file.appendRelabel(from, to);
+            compactFileIfNeeded();
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to save relabel of %d to %d", from, to);
+        }
+    }
+
+    private void compactFileIfNeeded() throws IOException {
+        if (file.needsCompaction()) file.compact(classNames);
+    }
+
+    /**
+     * Attaches an approximate index once the gallery outgrows the exact scan, see
+     * {@link Search#setIndex}. It is built on its own thread; queries keep scanning until it is
+     * in place.
+     */
+    private void indexIfLarge() {
+        final int size = search.size();
+        final int wanted = size >= IVF_PQ_MIN_IDENTITIES ? IVF_PQ_MIN_IDENTITIES
+                : size >= HNSW_MIN_IDENTITIES ? HNSW_MIN_IDENTITIES : 0;
+        if (wanted <= indexedFrom) return;
+        indexedFrom = wanted;
+
+        Thread builder = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                AnnIndex ann;
+                // parameters at full recall@1 in IvfPqBenchmark and HnswBenchmark
+                if (wanted == IVF_PQ_MIN_IDENTITIES) {
+                    ann = IvfPqIndex.train(search.getCentroids(IVF_PQ_TRAINING_IDENTITIES),
+                            (int) Math.sqrt(size), 16, 16, 15);
+                } else {
+                    ann = new HnswIndex(FacePredictor.EMBEDDING_SIZE, 16, 100, 64);
+                }
+                search.setIndex(ann);
+                LOGGER.i("Gallery %s: %s of %d identities in %dms", name,
+                        ann.getClass().getSimpleName(), size, System.currentTimeMillis() - start);
+            } catch (RuntimeException e) {
+                LOGGER.e(e, "Failed to index gallery %s", name);
+            }
+        }, "gallery-index-" + name);
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package pp.facerecognizer.search;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The enrolled gallery on disk, so identities survive a restart.
+ *
+ * Layout: a fixed 32-byte header (magic, format version, embedding dim, model version, identity
+ * count) followed by an append-only log of records. Each record is
+ * {@code [int bodyLength][byte type][int label][body][int crc32]}: a name, the embeddings of an
+ * enrollment, a deletion or a relabel. A later record for the same label supersedes an earlier
+ * one.
+ *
+ * Embeddings are always stored as float32, whatever precision the gallery keeps them at in memory,
+ * and {@link #readEnrollment} reads them back from the log.
+ *
+ * Appends are fsynced before they return. A record torn by a crash fails its CRC and is cut off
+ * on the next open. {@link #compact} rewrites only the live records into a temporary file, syncs
+ * it, renames it over the log and syncs the directory, so a crash leaves either the old or the
+ * new file. Opening maps the file and hands out each embedding as a view of the mapping, which
+ * is encoded into the gallery without a float[] copy of the whole log.
+ */
+public class GalleryFile implements Closeable {
+
+    public static final String FILE_NAME = "gallery.bin";
+
+    private static final int MAGIC = 0x474c5259; // "GLRY"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 16;
+    // bodyLength + type + label before the body, crc after it
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 4;
+
+    private static final byte NAME = 1;
+    private static final byte ENROLL = 2;
+    // drops the name and enrollment of the label
+    private static final byte DELETE = 3;
+    // moves the enrollment of the label to the label in the body
+    private static final byte RELABEL = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the live state while a gallery file is replayed, in log order.
+     */
+    public interface Visitor {
+        void onName(int label, String name);
+
+        /**
+         * @param embeddings read-only views of the mapped file, {@code dim} floats each; they stay
+         *                   readable after the file is closed or compacted.
+         */
+        void onEnroll(int label, List<FloatBuffer> embeddings);
+
+        void onDelete(int label);
+
+        void onRelabel(int from, int to);
+    }
+
+    private final File file;
+    private final int dim;
+    private final int modelVersion;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long end;
+    private int records;
+    private final Set<Integer> names = new HashSet<>();
+    // label -> position of its live ENROLL record
+    private final Map<Integer, Long> enrolled = new HashMap<>();
+    // labels whose DELETE record compaction keeps, so they are not handed out again
+    private final Set<Integer> deleted = new HashSet<>();
+    // compaction syncs once at the end instead of after every record
+    private boolean syncAppends = true;
+
+    private GalleryFile(File file, int dim, int modelVersion) {
+        this.file = file;
+        this.dim = dim;
+        this.modelVersion = modelVersion;
+    }
+
+    /**
+     * Opens the gallery, creating an empty one if the file does not exist.
+     *
+     * @throws IOException also when the file was written for another embedding dim or model
+     *                     version, whose embeddings are not comparable with the current ones.
+     */
+    public static GalleryFile open(File file, int dim, int modelVersion) throws IOException {
+        GalleryFile gallery = new GalleryFile(file, dim, modelVersion);
+        if (!file.exists() || file.length() == 0) {
+            writeHeader(file, dim, modelVersion);
+        }
+        gallery.openChannel();
+        return gallery;
+    }
+
+    /**
+     * Feeds every record to {@code visitor}. A truncated or corrupt tail, e.g. from a crash in
+     * the middle of an append, is dropped from the file.
+     */
+    public synchronized void replay(Visitor visitor) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        byte[] body = new byte[0];
+
+        records = 0;
+        names.clear();
+        enrolled.clear();
+        deleted.clear();
+
+        int position = HEADER_SIZE;
+        while (position + RECORD_OVERHEAD <= size) {
+            map.position(position);
+            int bodyLength = map.getInt();
+            if (bodyLength < 0 || position + RECORD_OVERHEAD + (long) bodyLength > size) break;
+
+            // type, label and body are covered by the crc
+            int checked = 1 + 4 + bodyLength;
+            if (body.length < checked) body = new byte[Math.max(checked, body.length * 2)];
+            map.get(body, 0, checked);
+            int expected = map.getInt();
+            crc.reset();
+            crc.update(body, 0, checked);
+            if ((int) crc.getValue() != expected) break;
+
+            ByteBuffer record = ByteBuffer.wrap(body, 0, checked);
+            byte type = record.get();
+            int label = record.getInt();
+            if (type == NAME) {
+                visitor.onName(label, new String(body, 5, bodyLength, UTF_8));
+                names.add(label);
+            } else if (type == ENROLL) {
+                int count = record.getInt();
+                if (count < 0 || 4 + (long) count * dim * 4 > bodyLength) break;
+                // bodyLength, type, label and count come before the floats
+                int floats = position + 4 + 1 + 4 + 4;
+                List<FloatBuffer> embeddings = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer row = map.duplicate();
+                    row.limit(floats + (i + 1) * dim * 4).position(floats + i * dim * 4);
+                    embeddings.add(row.slice().asFloatBuffer());
+                }
+                visitor.onEnroll(label, embeddings);
+                enrolled.put(label, (long) position);
+            } else if (type == DELETE) {
+                visitor.onDelete(label);
+                names.remove(label);
+                enrolled.remove(label);
+                deleted.add(label);
+            } else if (type == RELABEL) {
+                int to = record.getInt();
+                visitor.onRelabel(label, to);
+                Long moved = enrolled.remove(label);
+                if (moved != null) enrolled.put(to, moved);
+            }
+
+            records++;
+            position += RECORD_OVERHEAD + bodyLength;
+        }
+
+        if (position != size) {
+            // torn tail from an interrupted append
+            channel.truncate(position);
+            channel.force(true);
+        }
+        end = position;
+    }
+
+    public synchronized void appendName(int label, String name) throws IOException {
+        byte[] bytes = name.getBytes(UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(bytes.length);
+        body.put(bytes);
+        append(NAME, label, body);
+        names.add(label);
+    }
+
+    public synchronized void appendEnroll(int label, List<float[]> embeddings) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(4 + embeddings.size() * dim * 4);
+        body.putInt(embeddings.size());
+        for (float[] embedding : embeddings) {
+            body.asFloatBuffer().put(embedding, 0, dim);
+            body.position(body.position() + dim * 4);
+        }
+        long position = end;
+        append(ENROLL, label, body);
+        if (enrolled.put(label, position) == null) writeCount();
+    }
+
+    /**
+     * Appends the names and enrollments of consecutive labels from {@code firstLabel}, synced
+     * once at the end instead of after every record, e.g. for a bulk import.
+     */
+    public synchronized void appendAll(int firstLabel, List<String> names,
+                                       List<? extends List<float[]>> embeddings) throws IOException {
+        boolean sync = syncAppends;
+        syncAppends = false;
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                appendName(firstLabel + i, names.get(i));
+                appendEnroll(firstLabel + i, embeddings.get(i));
+            }
+        } finally {
+            syncAppends = sync;
+        }
+        if (sync) channel.force(false);
+    }
+
+    public synchronized void appendDelete(int label) throws IOException {
+        append(DELETE, label, ByteBuffer.allocate(0));
+        names.remove(label);
+        deleted.add(label);
+        if (enrolled.remove(label) != null) writeCount();
+    }
+
+    public synchronized void appendRelabel(int from, int to) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(4);
+        body.putInt(to);
+        append(RELABEL, from, body);
+        Long moved = enrolled.remove(from);
+        if (moved != null) enrolled.put(to, moved);
+        writeCount();
+    }
+
+    /**
+     * The embeddings {@code label} is enrolled with, as written, or null if it is not enrolled.
+     */
+    public synchronized List<float[]> readEnrollment(int label) throws IOException {
+        Long position = enrolled.get(label);
+        if (position == null) return null;
+
+        // bodyLength, type, label, then the count of the body
+        ByteBuffer head = ByteBuffer.allocate(4 + 1 + 4 + 4);
+        readFully(head, position);
+        int count = head.getInt(4 + 1 + 4);
+        ByteBuffer floats = ByteBuffer.allocate(count * dim * 4);
+        readFully(floats, position + head.capacity());
+
+        List<float[]> embeddings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] embedding = new float[dim];
+            floats.asFloatBuffer().get(embedding);
+            floats.position(floats.position() + dim * 4);
+            embeddings.add(embedding);
+        }
+        return embeddings;
+    }
+
+    /** The end of the log, to cut it back to with {@link #rollback}. */
+    public synchronized long mark() {
+        return end;
+    }
+
+    /**
+     * Drops every record appended after {@code mark}, e.g. those of an import that failed half
+     * way, and re-reads what is left.
+     */
+    public synchronized void rollback(long mark) throws IOException {
+        if (mark < HEADER_SIZE || mark > end) throw new IllegalArgumentException("mark " + mark + ", end " + end);
+        channel.truncate(mark);
+        channel.force(true);
+        replay(new Visitor() {
+            @Override
+            public void onName(int label, String name) {
+            }
+
+            @Override
+            public void onEnroll(int label, List<FloatBuffer> embeddings) {
+            }
+
+            @Override
+            public void onDelete(int label) {
+            }
+
+            @Override
+            public void onRelabel(int from, int to) {
+            }
+        });
+        writeCount();
+    }
+
+    /** Number of enrolled identities. */
+    public synchronized int getCount() {
+        return enrolled.size();
+    }
+
+    /**
+     * Whether superseded records make up most of the log, see {@link #compact}.
+     */
+    public synchronized boolean needsCompaction() {
+        int live = names.size() + enrolled.size() + deleted.size();
+        return records > 2 * live + 64;
+    }
+
+    /**
+     * Replaces the log by one record per live name and enrollment, and a DELETE record per
+     * deleted label below {@code names.size()}, so the labels of deleted people are still taken
+     * after a reload. Enrollments are copied from the log one label at a time.
+     *
+     * @param names name of each label, null for deleted labels.
+     */
+    public synchronized void compact(List<String> names) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        writeHeader(tmp, dim, modelVersion);
+
+        GalleryFile compacted = new GalleryFile(tmp, dim, modelVersion);
+        compacted.syncAppends = false;
+        compacted.openChannel();
+        try {
+            for (int label = 0; label < names.size(); label++) {
+                if (names.get(label) != null) {
+                    compacted.appendName(label, names.get(label));
+                } else {
+                    compacted.appendDelete(label);
+                }
+            }
+            // in label order, so that a reload enrolls them in the same order
+            for (int label : new TreeMap<>(enrolled).keySet()) {
+                compacted.appendEnroll(label, readEnrollment(label));
+            }
+            compacted.channel.force(true);
+        } finally {
+            compacted.close();
+        }
+
+        // atomic on POSIX: readers see either the old log or the compacted one
+        if (!tmp.renameTo(file)) throw new IOException("Failed to replace " + file + " with " + tmp);
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+
+        close();
+        openChannel();
+        this.names.clear();
+        this.names.addAll(compacted.names);
+        this.enrolled.clear();
+        this.enrolled.putAll(compacted.enrolled);
+        this.deleted.clear();
+        this.deleted.addAll(compacted.deleted);
+        this.records = compacted.records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+            channel = null;
+        }
+    }
+
+    private void openChannel() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            close();
+            throw new IOException("Not a gallery file: " + file);
+        }
+        int version = header.getInt();
+        int fileDim = header.getInt();
+        int fileModelVersion = header.getInt();
+        if (version != VERSION || fileDim != dim || fileModelVersion != modelVersion) {
+            close();
+            throw new IOException(String.format(
+                    "Gallery %s has format %d, dim %d, model %d; expected format %d, dim %d, model %d",
+                    file, version, fileDim, fileModelVersion, VERSION, dim, modelVersion));
+        }
+        end = channel.size();
+    }
+
+    private void append(byte type, int label, ByteBuffer body) throws IOException {
+        byte[] checked = new byte[1 + 4 + body.capacity()];
+        ByteBuffer.wrap(checked).put(type).putInt(label).put(body.array());
+        CRC32 crc = new CRC32();
+        crc.update(checked);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + body.capacity());
+        record.putInt(body.capacity()).put(checked).putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record, end + record.position());
+        }
+        if (syncAppends) channel.force(false);
+        end += record.capacity();
+        records++;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    private void writeCount() throws IOException {
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(enrolled.size());
+        count.flip();
+        channel.write(count, COUNT_OFFSET);
+    }
+
+    // The rename only survives a power loss once the directory entry is on disk too.
+    private static void syncDirectory(File dir) throws IOException {
+        try {
+            DirectorySync.sync(dir);
+        } catch (NoClassDefFoundError e) {
+            // no android.system on a plain JVM, e.g. in unit tests
+        }
+    }
+
+    // kept apart so that GalleryFile itself loads without android.system
+    private static class DirectorySync {
+        static void sync(File dir) throws IOException {
+            FileDescriptor fd;
+            try {
+                fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            } catch (ErrnoException e) {
+                throw new IOException("Failed to open " + dir, e);
+            }
+            try {
+                Os.fsync(fd);
+            } catch (ErrnoException e) {
+                throw new IOException("Failed to sync " + dir, e);
+            } finally {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException ignored) {
+                    // the sync went through or already failed
+                }
+            }
+        }
+    }
+
+    private static void writeHeader(File file, int dim, int modelVersion) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dim).putInt(modelVersion).putInt(0);
+            header.rewind();
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package pp.facerecognizer.search;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import pp.facerecognizer.recognition.FacePredictor;
+
+/**
+ * The named {@link Gallery galleries} of the app, each stored in its own file of one directory:
+ * {@code gallery.bin} for {@link #DEFAULT}, {@code gallery-<name>.bin} for the others.
+ *
+ * {@link #identify} searches one gallery on the calling thread, or several concurrently, and
+ * merges the per-gallery results into the best match per face.
+ */
+public class GalleryRegistry implements Closeable {
+
+    public static final String DEFAULT = "default";
+    public static final float DEFAULT_THRESHOLD = 0.5f;
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_]+");
+    private static final String PREFIX = "gallery-";
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * The best match of one face over the queried galleries.
+     */
+    public static class Match {
+        public final Gallery gallery;
+        public final int label;
+        public final float score;
+
+        Match(Gallery gallery, int label, float score) {
+            this.gallery = gallery;
+            this.label = label;
+            this.score = score;
+        }
+
+        /** Whether the score reaches the threshold of the gallery it was found in. */
+        public boolean isAccepted() {
+            return gallery != null && label >= 0 && score > gallery.getThreshold();
+        }
+
+        /** The matched person, or null when the match is not accepted. */
+        public String getPerson() {
+            return isAccepted() ? gallery.getPerson(label) : null;
+        }
+
+        /** Gallery and label, which stay the same for one person however the score varies. */
+        public String getId() {
+            return (gallery == null ? "-" : gallery.getName()) + "/" + label;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%.3f)", getId(), score);
+        }
+    }
+
+    private final File dir;
+    private final Precision precision;
+    private final Map<String, Gallery> galleries = new LinkedHashMap<>();
+    private ExecutorService queryPool;
+
+    public GalleryRegistry(File dir, Precision precision) {
+        this.dir = dir;
+        this.precision = precision;
+    }
+
+    /**
+     * Opens the default gallery and every other gallery found in the directory, at the default
+     * threshold.
+     */
+    public synchronized void openAll() {
+        open(DEFAULT, DEFAULT_THRESHOLD);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) continue;
+            String name = fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length());
+            if (NAME.matcher(name).matches()) open(name, DEFAULT_THRESHOLD);
+        }
+    }
+
+    /**
+     * The gallery called {@code name}, opened (or created) on first use; an open gallery keeps
+     * its threshold.
+     *
+     * @param name letters, digits and underscores.
+     */
+    public synchronized Gallery open(String name, float threshold) {
+        Gallery gallery = galleries.get(name);
+        if (gallery != null) return gallery;
+        if (!NAME.matcher(name).matches()) throw new IllegalArgumentException("Bad gallery name " + name);
+
+        String fileName = DEFAULT.equals(name) ? GalleryFile.FILE_NAME : PREFIX + name + SUFFIX;
+        gallery = Gallery.open(name, new File(dir, fileName), precision, threshold);
+        galleries.put(name, gallery);
+        return gallery;
+    }
+
+    /** The open gallery called {@code name}, or null. */
+    public synchronized Gallery get(String name) {
+        return galleries.get(name);
+    }
+
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(galleries.keySet());
+    }
+
+    /**
+     * The best accepted match of every face over the galleries named, or its best rejected
+     * candidate when no gallery accepts it. Galleries are searched concurrently when there are
+     * several; unknown names are skipped.
+     *
+     * @param embeddings an N x dim row-major block, as returned by the embedding engines.
+     * @param names      galleries to search, all open galleries when empty.
+     */
+    public Match[] identify(float[] embeddings, String... names) {
+        List<Gallery> targets = new ArrayList<>();
+        ExecutorService pool;
+        synchronized (this) {
+            if (names.length == 0) {
+                targets.addAll(galleries.values());
+            } else {
+                for (String name : names) {
+                    if (galleries.containsKey(name)) targets.add(galleries.get(name));
+                }
+            }
+            if (targets.size() > 1 && queryPool == null) {
+                final AtomicInteger number = new AtomicInteger();
+                queryPool = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "gallery-query-" + number.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            pool = queryPool;
+        }
+
+        Match[] matches = new Match[embeddings.length / FacePredictor.EMBEDDING_SIZE];
+        for (int i = 0; i < matches.length; i++) matches[i] = new Match(null, -1, 0f);
+        if (targets.isEmpty()) return matches;
+
+        if (targets.size() == 1) {
+            merge(matches, targets.get(0), targets.get(0).getSearch().predictBatch(embeddings, 1));
+            return matches;
+        }
+
+        List<Callable<SearchResult[]>> queries = new ArrayList<>(targets.size());
+        for (final Gallery gallery : targets) {
+            queries.add(() -> gallery.getSearch().predictBatch(embeddings, 1));
+        }
+        try {
+            List<Future<SearchResult[]>> results = pool.invokeAll(queries);
+            for (int g = 0; g < targets.size(); g++) {
+                merge(matches, targets.get(g), results.get(g).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Gallery query interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Gallery query failed", e.getCause());
+        }
+        return matches;
+    }
+
+    // keeps, per face, an accepted match over a rejected one, then the higher score
+    private static void merge(Match[] matches, Gallery gallery, SearchResult[] results) {
+        for (int i = 0; i < matches.length; i++) {
+            SearchResult result = results[i];
+            if (result.size() == 0) continue;
+            Match candidate = new Match(gallery, result.getLabel(), result.getScore());
+            Match best = matches[i];
+            if (candidate.isAccepted() != best.isAccepted()
+                    ? candidate.isAccepted() : candidate.score > best.score) {
+                matches[i] = candidate;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Gallery gallery : galleries.values()) gallery.close();
+        galleries.clear();
+        if (queryPool != null) {
+            queryPool.shutdown();
+            queryPool = null;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package pp.facerecognizer.search;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.recognition.FacePredictor;
+
+/**
+ * Streams people with their embeddings into and out of a {@link Gallery}, to provision a device
+ * without decoding any photos.
+ *
+ * Two formats, chosen by file extension:
+ * <ul>
+ * <li>{@code .jsonl}: one person per line, {@code {"name":"...","embeddings":[[128 floats],...]}}.</li>
+ * <li>anything else: binary, a header {@code [int magic][int version][int dim][int model version]}
+ * followed by {@code [UTF name][int count][count x dim floats]} per person until the end of the
+ * stream.</li>
+ * </ul>
+ *
+ * Imports read {@link #BATCH_SIZE} people at a time into {@link Gallery#addAll}. The parsed
+ * floats of a batch are dropped once it is encoded, but the encoded people of the whole file are
+ * held until it is published at the end, so that a file that fails half way adds nobody: memory
+ * grows with the file by about what the gallery holds for it afterwards anyway.
+ *
+ * Both directions read or write every person of a file, so run them off the UI thread.
+ */
+public final class GalleryTransfer {
+    private static final Logger LOGGER = new Logger();
+
+    public static final String JSON_LINES_SUFFIX = ".jsonl";
+    // renamed to once imported, so a file is only imported once
+    public static final String IMPORTED_SUFFIX = ".imported";
+
+    private static final int MAGIC = 0x47454d42; // "GEMB"
+    private static final int VERSION = 1;
+    private static final int BATCH_SIZE = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * People and samples moved, and how fast.
+     */
+    public static class Report {
+        public final int identities;
+        public final int samples;
+        public final long millis;
+
+        Report(int identities, int samples, long millis) {
+            this.identities = identities;
+            this.samples = samples;
+            this.millis = millis;
+        }
+
+        public float getIdentitiesPerSecond() {
+            return identities * 1000f / Math.max(1, millis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d identities, %d samples in %dms (%.0f identities/s)",
+                    identities, samples, millis, getIdentitiesPerSecond());
+        }
+    }
+
+    private GalleryTransfer() {}
+
+    /**
+     * Imports every file of {@code dir} into the gallery named after it, e.g.
+     * {@code staff.jsonl} into the gallery {@code staff}, then renames the file so it is not
+     * imported again. Files that fail to import are left in place.
+     *
+     * @return the number of files imported.
+     */
+    public static int importDirectory(File dir, GalleryRegistry registry) {
+        int imported = 0;
+        File[] files = dir.listFiles();
+        if (files == null) return imported;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!file.isFile() || fileName.endsWith(IMPORTED_SUFFIX)) continue;
+
+            int dot = fileName.lastIndexOf('.');
+            String name = dot > 0 ? fileName.substring(0, dot) : fileName;
+            try (InputStream in = new FileInputStream(file)) {
+                Gallery gallery = registry.open(name, GalleryRegistry.DEFAULT_THRESHOLD);
+                Report report = importFrom(in, fileName.endsWith(JSON_LINES_SUFFIX), gallery);
+                LOGGER.i("Imported %s into gallery %s: %s", file, name, report);
+                file.renameTo(new File(file.getPath() + IMPORTED_SUFFIX));
+                imported++;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.e(e, "Failed to import %s", file);
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * Writes {@code gallery} to {@code file}, as JSON lines if its name ends with
+     * {@link #JSON_LINES_SUFFIX} and binary otherwise.
+     */
+    public static Report exportFile(Gallery gallery, File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            Report report = exportTo(out, file.getName().endsWith(JSON_LINES_SUFFIX), gallery);
+            LOGGER.i("Exported gallery %s to %s: %s", gallery.getName(), file, report);
+            return report;
+        }
+    }
+
+    /**
+     * Adds every person of the stream to {@code gallery} as a new label, or nobody if the stream
+     * turns out to be malformed part way.
+     *
+     * @param jsonLines JSON lines rather than binary.
+     */
+    public static Report importFrom(InputStream in, boolean jsonLines, Gallery gallery) throws IOException {
+        long start = System.currentTimeMillis();
+        final int[] counts = new int[2]; // identities, samples
+
+        final PersonReader reader = jsonLines ? new JsonLinesReader(in) : new BinaryReader(in);
+        gallery.addAll((names, embeddings) -> {
+            while (names.size() < BATCH_SIZE && reader.next()) {
+                names.add(reader.name);
+                embeddings.add(reader.embeddings);
+                counts[0]++;
+                counts[1] += reader.embeddings.size();
+            }
+            return !names.isEmpty();
+        });
+
+        return new Report(counts[0], counts[1], System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Writes every enrolled person of {@code gallery}, one at a time; people added but not
+     * enrolled are skipped.
+     *
+     * @param jsonLines JSON lines rather than binary.
+     */
+    public static Report exportTo(OutputStream out, boolean jsonLines, Gallery gallery) throws IOException {
+        long start = System.currentTimeMillis();
+        final int dim = FacePredictor.EMBEDDING_SIZE;
+        int identities = 0;
+        int samples = 0;
+
+        Writer json = null;
+        DataOutputStream binary = null;
+        ByteBuffer floats = ByteBuffer.allocate(dim * 4);
+        if (jsonLines) {
+            json = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+        } else {
+            binary = new DataOutputStream(new BufferedOutputStream(out));
+            binary.writeInt(MAGIC);
+            binary.writeInt(VERSION);
+            binary.writeInt(dim);
+            binary.writeInt(FacePredictor.MODEL_VERSION);
+        }
+
+        for (int label = 0; label < gallery.getLabelCount(); label++) {
+            String name = gallery.getPerson(label);
+            List<float[]> embeddings = name == null ? null : gallery.getSamples(label);
+            if (embeddings == null) continue;
+
+            if (jsonLines) {
+                JSONObject person = new JSONObject();
+                person.put("name", name);
+                person.put("embeddings", embeddings);
+                json.write(person.toJSONString());
+                json.write('\n');
+            } else {
+                binary.writeUTF(name);
+                binary.writeInt(embeddings.size());
+                for (float[] embedding : embeddings) {
+                    floats.clear();
+                    floats.asFloatBuffer().put(embedding, 0, dim);
+                    binary.write(floats.array());
+                }
+            }
+            identities++;
+            samples += embeddings.size();
+        }
+        if (jsonLines) json.flush();
+        else binary.flush();
+
+        return new Report(identities, samples, System.currentTimeMillis() - start);
+    }
+
+    private abstract static class PersonReader {
+        String name;
+        List<float[]> embeddings;
+
+        // reads the next person into name and embeddings; false at the end of the stream
+        abstract boolean next() throws IOException;
+    }
+
+    private static class JsonLinesReader extends PersonReader {
+        private final BufferedReader reader;
+        private int line;
+
+        JsonLinesReader(InputStream in) {
+            reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            String text;
+            do {
+                text = reader.readLine();
+                if (text == null) return false;
+                line++;
+            } while (text.trim().isEmpty());
+
+            JSONObject person = JSON.parseObject(text);
+            JSONArray samples = person.getJSONArray("embeddings");
+            name = person.getString("name");
+            if (name == null || samples == null || samples.isEmpty())
+                throw new IOException("Line " + line + ": name and embeddings are required");
+
+            embeddings = new ArrayList<>(samples.size());
+            for (int s = 0; s < samples.size(); s++) {
+                JSONArray values = samples.getJSONArray(s);
+                if (values.size() != FacePredictor.EMBEDDING_SIZE)
+                    throw new IOException("Line " + line + ": embedding has " + values.size()
+                            + " values, expected " + FacePredictor.EMBEDDING_SIZE);
+                float[] embedding = new float[values.size()];
+                for (int i = 0; i < embedding.length; i++) embedding[i] = values.getFloatValue(i);
+                embeddings.add(embedding);
+            }
+            return true;
+        }
+    }
+
+    private static class BinaryReader extends PersonReader {
+        private final DataInputStream in;
+        private final byte[] floats = new byte[FacePredictor.EMBEDDING_SIZE * 4];
+        private boolean headerRead;
+
+        BinaryReader(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!headerRead) {
+                if (in.readInt() != MAGIC) throw new IOException("Not an embedding file");
+                int version = in.readInt();
+                int dim = in.readInt();
+                int modelVersion = in.readInt();
+                if (version != VERSION || dim != FacePredictor.EMBEDDING_SIZE
+                        || modelVersion != FacePredictor.MODEL_VERSION) {
+                    throw new IOException(String.format(
+                            "Embedding file has format %d, dim %d, model %d; expected format %d, dim %d, model %d",
+                            version, dim, modelVersion,
+                            VERSION, FacePredictor.EMBEDDING_SIZE, FacePredictor.MODEL_VERSION));
+                }
+                headerRead = true;
+            }
+
+            try {
+                name = in.readUTF();
+            } catch (EOFException e) {
+                return false;
+            }
+            int count = in.readInt();
+            if (count <= 0) throw new IOException(name + " has " + count + " embeddings");
+            embeddings = new ArrayList<>(count);
+            for (int s = 0; s < count; s++) {
+                float[] embedding = new float[FacePredictor.EMBEDDING_SIZE];
+                in.readFully(floats);
+                ByteBuffer.wrap(floats).asFloatBuffer().get(embedding);
+                embeddings.add(embedding);
+            }
+            return true;
+        }
+    }
+}
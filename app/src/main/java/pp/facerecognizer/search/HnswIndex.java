@@ -0,0 +1,495 @@
+package pp.facerecognizer.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin) over L2-normalized embeddings,
+ * scored by dot product.
+ *
+ * Inserts are incremental. Replaced and removed labels stay in the graph as deleted nodes so the
+ * links through them keep working; queries walk through them but only count live nodes towards
+ * their beam, so tombstones do not shrink the results.
+ *
+ * Queries take no lock. Writers are serialized and publish an immutable {@link Graph} view once
+ * per change: nodes are only appended, the links of a node visible to readers are replaced as a
+ * whole through an {@link AtomicReferenceArray}, never modified, and deleted flags are copied
+ * before they change, so a query sees a consistent graph of its first {@code count} nodes.
+ *
+ * {@code m} is the number of links per node on the upper layers (twice that on layer 0),
+ * {@code efConstruction} the beam width while inserting and {@code efSearch} the beam width of
+ * queries; larger values trade speed for recall.
+ */
+public class HnswIndex implements AnnIndex {
+
+    private static final int MAGIC = 0x484e5357; // "HNSW"
+    private static final int VERSION = 1;
+
+    private final int dim;
+    private final int m;
+    private final int efConstruction;
+    private volatile int efSearch;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+
+    /** What queries see: the arrays and counts as of one finished write. */
+    private static class Graph {
+        final float[] vectors;
+        final int[] labels;
+        final boolean[] deleted;
+        final AtomicReferenceArray<int[][]> links;
+        final int count;
+        final int liveCount;
+        final int entryPoint;
+        final int maxLevel;
+
+        Graph(float[] vectors, int[] labels, boolean[] deleted, AtomicReferenceArray<int[][]> links, int count,
+              int liveCount, int entryPoint, int maxLevel) {
+            this.vectors = vectors;
+            this.labels = labels;
+            this.deleted = deleted;
+            this.links = links;
+            this.count = count;
+            this.liveCount = liveCount;
+            this.entryPoint = entryPoint;
+            this.maxLevel = maxLevel;
+        }
+    }
+
+    // per-thread search scratch, so queries need no lock
+    private static class Scratch {
+        int[] visited = new int[0];
+        int visitEpoch;
+        final NodeHeap candidates = new NodeHeap(64);
+        final NodeHeap results = new NodeHeap(64);
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private volatile Graph graph = new Graph(new float[0], new int[0], new boolean[0],
+            new AtomicReferenceArray<int[][]>(0), 0, 0, -1, -1);
+
+    // the writers' state, guarded by the index lock and published through graph
+    private float[] vectors = new float[0];
+    private int[] labels = new int[0];
+    // copied before a published flag is set
+    private boolean[] deleted = new boolean[0];
+    // links[node][level]: neighbour count at [0], neighbour ids after it
+    private AtomicReferenceArray<int[][]> links = new AtomicReferenceArray<>(0);
+    private int count;
+    private int liveCount;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    // label -> node, -1 for labels not in the index
+    private int[] labelToNode = new int[0];
+
+    public HnswIndex(int dim, int m, int efConstruction, int efSearch) {
+        if (m < 2) throw new IllegalArgumentException("m must be at least 2");
+        this.dim = dim;
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1.0 / Math.log(m);
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    @Override
+    public synchronized void add(int label, float[] embedding) {
+        if (embedding.length != dim)
+            throw new IllegalArgumentException("embedding has " + embedding.length + " dims, expected " + dim);
+        if (label < 0) throw new IllegalArgumentException("negative label " + label);
+        // replaced only once the new node is linked, in the same publish
+        int replaced = label < labelToNode.length ? labelToNode[label] : -1;
+
+        int node = count;
+        int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+        ensureCapacity(node + 1);
+        System.arraycopy(EmbeddingRows.unit(embedding), 0, vectors, node * dim, dim);
+        labels[node] = label;
+        int[][] nodeLinks = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            nodeLinks[l] = new int[maxLinks(l) + 1];
+        }
+        links.set(node, nodeLinks);
+        count++;
+        liveCount++;
+        setNode(label, node);
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            publish();
+            return;
+        }
+
+        // the new node is not published yet, so its own lists can be filled in place
+        Graph current = snapshot();
+        float[] query = Arrays.copyOfRange(vectors, node * dim, (node + 1) * dim);
+        int ep = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            ep = greedyClosest(current, query, ep, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            int[] found = searchLayer(current, query, ep, efConstruction, l, false);
+            int[] neighbours = selectNeighbours(node, found, m);
+            int[] list = nodeLinks[l];
+            list[0] = neighbours.length;
+            System.arraycopy(neighbours, 0, list, 1, neighbours.length);
+            for (int neighbour : neighbours) {
+                link(neighbour, node, l);
+            }
+            ep = found[0];
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        if (replaced >= 0) markDeleted(replaced);
+        publish();
+    }
+
+    @Override
+    public synchronized void remove(int label) {
+        if (label < 0 || label >= labelToNode.length || labelToNode[label] < 0) return;
+        markDeleted(labelToNode[label]);
+        labelToNode[label] = -1;
+        publish();
+    }
+
+    // the published flags stay as they are until the next publish
+    private void markDeleted(int node) {
+        deleted = deleted.clone();
+        deleted[node] = true;
+        liveCount--;
+    }
+
+    @Override
+    public SearchResult search(float[] query, int k) {
+        Graph g = graph;
+        TopK top = new TopK(k);
+        if (g.entryPoint < 0) return top.toResult();
+
+        int ep = g.entryPoint;
+        for (int l = g.maxLevel; l > 0; l--) {
+            ep = greedyClosest(g, query, ep, l);
+        }
+        // the beam holds efSearch live nodes, however many tombstones lie between them
+        int[] found = searchLayer(g, query, ep, Math.max(efSearch, k), 0, true);
+        for (int node : found) {
+            top.offer(g.labels[node], similarity(g.vectors, query, node));
+        }
+        return top.toResult();
+    }
+
+    @Override
+    public int size() {
+        return graph.liveCount;
+    }
+
+    /** Vectors and links of every node, deleted ones included, and the label table. */
+    @Override
+    public synchronized long bytes() {
+        long bytes = (long) vectors.length * 4 + labels.length * 4L + deleted.length
+                + labelToNode.length * 4L;
+        for (int node = 0; node < count; node++) {
+            for (int[] list : links.get(node)) bytes += list.length * 4L;
+        }
+        return bytes;
+    }
+
+    /** Removed nodes still kept in the graph, see {@link #emptyCopy}. */
+    public int getDeletedCount() {
+        Graph g = graph;
+        return g.count - g.liveCount;
+    }
+
+    /** Deleted nodes are never unlinked, so compaction rebuilds the graph from scratch. */
+    @Override
+    public AnnIndex emptyCopy() {
+        return new HnswIndex(dim, m, efConstruction, efSearch);
+    }
+
+    /**
+     * Writes the whole graph, so a large gallery does not have to be rebuilt on every start.
+     */
+    @Override
+    public synchronized void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dim);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(count);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int node = 0; node < count; node++) {
+                out.writeInt(labels[node]);
+                out.writeBoolean(deleted[node]);
+                int[][] nodeLinks = links.get(node);
+                out.writeInt(nodeLinks.length);
+                for (int i = 0; i < dim; i++) {
+                    out.writeFloat(vectors[node * dim + i]);
+                }
+                for (int[] list : nodeLinks) {
+                    out.writeInt(list[0]);
+                    for (int i = 1; i <= list[0]; i++) out.writeInt(list[i]);
+                }
+            }
+        }
+    }
+
+    public static HnswIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not an HNSW index: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported HNSW index version " + version);
+
+            int dim = in.readInt();
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            int efSearch = in.readInt();
+            HnswIndex index = new HnswIndex(dim, m, efConstruction, efSearch);
+
+            int count = in.readInt();
+            index.ensureCapacity(count);
+            index.count = count;
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            for (int node = 0; node < count; node++) {
+                index.labels[node] = in.readInt();
+                index.deleted[node] = in.readBoolean();
+                if (!index.deleted[node]) {
+                    index.setNode(index.labels[node], node);
+                    index.liveCount++;
+                }
+                int levels = in.readInt();
+                for (int i = 0; i < dim; i++) {
+                    index.vectors[node * dim + i] = in.readFloat();
+                }
+                int[][] nodeLinks = new int[levels][];
+                for (int l = 0; l < levels; l++) {
+                    int[] list = new int[index.maxLinks(l) + 1];
+                    list[0] = in.readInt();
+                    for (int i = 1; i <= list[0]; i++) list[i] = in.readInt();
+                    nodeLinks[l] = list;
+                }
+                index.links.set(node, nodeLinks);
+            }
+            index.publish();
+            return index;
+        }
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private void ensureCapacity(int nodes) {
+        if (nodes <= labels.length) return;
+        int capacity = Math.max(nodes, Math.max(16, labels.length * 2));
+        vectors = Arrays.copyOf(vectors, capacity * dim);
+        labels = Arrays.copyOf(labels, capacity);
+        deleted = Arrays.copyOf(deleted, capacity);
+        AtomicReferenceArray<int[][]> grown = new AtomicReferenceArray<>(capacity);
+        for (int node = 0; node < count; node++) grown.set(node, links.get(node));
+        links = grown;
+    }
+
+    private void setNode(int label, int node) {
+        if (label >= labelToNode.length) {
+            int length = labelToNode.length;
+            labelToNode = Arrays.copyOf(labelToNode, Math.max(label + 1, Math.max(16, length * 2)));
+            Arrays.fill(labelToNode, length, labelToNode.length, -1);
+        }
+        labelToNode[label] = node;
+    }
+
+    private Graph snapshot() {
+        return new Graph(vectors, labels, deleted, links, count, liveCount, entryPoint, maxLevel);
+    }
+
+    private void publish() {
+        graph = snapshot();
+    }
+
+    private float similarity(float[] vectors, float[] query, int node) {
+        return EmbeddingRows.dot(vectors, node * dim, query, dim);
+    }
+
+    private float similarity(int a, int b) {
+        final float[] vectors = this.vectors;
+        int offsetA = a * dim;
+        int offsetB = b * dim;
+        float dot = 0f;
+        for (int i = 0; i < dim; i++) dot += vectors[offsetA + i] * vectors[offsetB + i];
+        return dot;
+    }
+
+    // Walks to the most similar node of one layer, one improving hop at a time.
+    private int greedyClosest(Graph g, float[] query, int ep, int level) {
+        int current = ep;
+        float best = similarity(g.vectors, query, current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] list = g.links.get(current)[level];
+            for (int i = 1; i <= list[0]; i++) {
+                // links to nodes added after g was published
+                if (list[i] >= g.count) continue;
+                float sim = similarity(g.vectors, query, list[i]);
+                if (sim > best) {
+                    best = sim;
+                    current = list[i];
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search of width {@code ef} on one layer.
+     *
+     * @param liveOnly walk through deleted nodes without counting them towards {@code ef} or
+     *                 returning them.
+     * @return the nodes found, most similar first.
+     */
+    private int[] searchLayer(Graph g, float[] query, int ep, int ef, int level, boolean liveOnly) {
+        Scratch s = scratch.get();
+        if (s.visited.length < g.count) s.visited = new int[Math.max(g.count, s.visited.length * 2)];
+        if (++s.visitEpoch == 0) {
+            Arrays.fill(s.visited, 0);
+            s.visitEpoch = 1;
+        }
+        final int[] visited = s.visited;
+        final int epoch = s.visitEpoch;
+        NodeHeap candidates = s.candidates; // max-heap, keys negated
+        NodeHeap results = s.results;       // min-heap holding the ef best
+        candidates.clear();
+        results.clear();
+
+        float sim = similarity(g.vectors, query, ep);
+        visited[ep] = epoch;
+        candidates.push(ep, -sim);
+        if (!liveOnly || !g.deleted[ep]) results.push(ep, sim);
+
+        while (candidates.size() > 0) {
+            float candidateSim = -candidates.peekKey();
+            int candidate = candidates.pop();
+            if (results.size() >= ef && candidateSim < results.peekKey()) break;
+
+            int[] list = g.links.get(candidate)[level];
+            for (int i = 1; i <= list[0]; i++) {
+                int neighbour = list[i];
+                if (neighbour >= g.count || visited[neighbour] == epoch) continue;
+                visited[neighbour] = epoch;
+
+                sim = similarity(g.vectors, query, neighbour);
+                if (results.size() < ef || sim > results.peekKey()) {
+                    candidates.push(neighbour, -sim);
+                    if (liveOnly && g.deleted[neighbour]) continue;
+                    results.push(neighbour, sim);
+                    if (results.size() > ef) results.pop();
+                }
+            }
+        }
+
+        int[] found = new int[results.size()];
+        for (int i = found.length - 1; i >= 0; i--) {
+            found[i] = results.pop();
+        }
+        return found;
+    }
+
+    /**
+     * The neighbour selection heuristic: walks candidates from most similar and keeps one only if
+     * it is closer to {@code node} than to every neighbour already kept, which spreads links in
+     * different directions instead of into one cluster.
+     *
+     * @param candidates most similar first.
+     */
+    private int[] selectNeighbours(int node, int[] candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.length)];
+        int size = 0;
+        for (int candidate : candidates) {
+            if (size == selected.length) break;
+            if (candidate == node) continue;
+            float sim = similarity(node, candidate);
+            boolean keep = true;
+            for (int i = 0; i < size; i++) {
+                if (similarity(candidate, selected[i]) > sim) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) selected[size++] = candidate;
+        }
+        return Arrays.copyOf(selected, size);
+    }
+
+    // Adds the back link neighbour -> node, re-selecting neighbour's links when it is full. The
+    // links may be read by queries, so neighbour gets new arrays rather than changed ones.
+    private void link(int neighbour, int node, int level) {
+        int[] list = links.get(neighbour)[level];
+        int max = maxLinks(level);
+        if (list[0] < max) {
+            int[] grown = list.clone();
+            grown[++grown[0]] = node;
+            setLinks(neighbour, level, grown);
+            return;
+        }
+
+        // current links plus the new node, most similar first; at most 2m + 1 entries
+        int[] ordered = new int[list[0] + 1];
+        float[] sims = new float[ordered.length];
+        for (int i = 0; i < ordered.length; i++) {
+            int candidate = i < list[0] ? list[i + 1] : node;
+            float sim = similarity(neighbour, candidate);
+            int j = i;
+            while (j > 0 && sims[j - 1] < sim) {
+                ordered[j] = ordered[j - 1];
+                sims[j] = sims[j - 1];
+                j--;
+            }
+            ordered[j] = candidate;
+            sims[j] = sim;
+        }
+        int[] kept = selectNeighbours(neighbour, ordered, max);
+        int[] replaced = new int[max + 1];
+        replaced[0] = kept.length;
+        System.arraycopy(kept, 0, replaced, 1, kept.length);
+        setLinks(neighbour, level, replaced);
+    }
+
+    private void setLinks(int node, int level, int[] list) {
+        int[][] nodeLinks = links.get(node).clone();
+        nodeLinks[level] = list;
+        links.set(node, nodeLinks);
+    }
+}
@@ -0,0 +1,153 @@
+package pp.facerecognizer.search;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * All enrollment embeddings of one identity, L2-normalized and stored at the gallery's
+ * {@link Precision}.
+ *
+ * The centroid is not kept: the gallery row already holds it, and its score is the sum of the
+ * sample scores over the norm of the sample sum.
+ */
+public class IdentityTemplate {
+
+    private final int dim;
+    private final int count;
+    private final EmbeddingRows samples;
+    // norm of the sum of the unit samples
+    private final float sumNorm;
+
+    public IdentityTemplate(List<float[]> embeddings, int dim) {
+        this(embeddings, Precision.FLOAT32, dim);
+    }
+
+    public IdentityTemplate(List<float[]> embeddings, Precision precision, int dim) {
+        this(encode(embeddings, precision, dim));
+    }
+
+    private IdentityTemplate(EmbeddingRows samples) {
+        this.dim = samples.dim();
+        this.count = samples.size();
+        this.samples = samples;
+        this.sumNorm = norm(sum());
+    }
+
+    /**
+     * A template encoded straight from the views of a mapped {@link GalleryFile}, see
+     * {@link GalleryFile.Visitor#onEnroll}.
+     */
+    public static IdentityTemplate mapped(List<FloatBuffer> embeddings, Precision precision, int dim) {
+        EmbeddingRows samples = rows(embeddings.size(), precision, dim);
+        for (int s = 0; s < embeddings.size(); s++) samples.set(s, embeddings.get(s));
+        return new IdentityTemplate(samples);
+    }
+
+    private static EmbeddingRows encode(List<float[]> embeddings, Precision precision, int dim) {
+        EmbeddingRows samples = rows(embeddings.size(), precision, dim);
+        for (int s = 0; s < embeddings.size(); s++) samples.set(s, embeddings.get(s));
+        return samples;
+    }
+
+    private static EmbeddingRows rows(int count, Precision precision, int dim) {
+        if (count == 0) throw new IllegalArgumentException("An identity needs at least one embedding");
+        return EmbeddingRows.create(precision, dim, count);
+    }
+
+    public int getSampleCount() {
+        return count;
+    }
+
+    /** The normalized mean of the samples, decoded from their stored precision. */
+    public float[] getCentroid() {
+        return EmbeddingRows.unit(sum());
+    }
+
+    /** The normalized samples, e.g. to persist them. */
+    public List<float[]> getSamples() {
+        List<float[]> list = new ArrayList<>(count);
+        for (int s = 0; s < count; s++) list.add(getSample(s));
+        return list;
+    }
+
+    public float[] getSample(int sample) {
+        return samples.get(sample);
+    }
+
+    public Precision getPrecision() {
+        return samples.precision();
+    }
+
+    /** Bytes held by the samples. */
+    public long bytes() {
+        return samples.bytes() + 4;
+    }
+
+    /**
+     * Scores a unit-length query against this identity.
+     *
+     * @param k number of best samples averaged by {@link ScoreMode#TOP_K_MEAN}.
+     */
+    public float score(float[] query, ScoreMode mode, int k) {
+        switch (mode) {
+            case MAX:
+                float max = -1f;
+                for (int s = 0; s < count; s++) max = Math.max(max, dot(s, query));
+                return max;
+            case TOP_K_MEAN:
+                return topKMean(query, Math.min(k, count));
+            default:
+                return dotCentroid(query);
+        }
+    }
+
+    private float topKMean(float[] query, int k) {
+        if (k <= 0) return dotCentroid(query);
+
+        // k best scores kept in descending order; enrollments are a handful of photos
+        float[] best = new float[k];
+        Arrays.fill(best, -Float.MAX_VALUE);
+        for (int s = 0; s < count; s++) {
+            float score = dot(s, query);
+            int i = k - 1;
+            if (score <= best[i]) continue;
+            while (i > 0 && best[i - 1] < score) {
+                best[i] = best[i - 1];
+                i--;
+            }
+            best[i] = score;
+        }
+
+        float sum = 0f;
+        for (float score : best) sum += score;
+        return sum / k;
+    }
+
+    private float dot(int sample, float[] query) {
+        return samples.cosine(sample, query);
+    }
+
+    private float dotCentroid(float[] query) {
+        if (sumNorm == 0f) return 0f;
+        float sum = 0f;
+        for (int s = 0; s < count; s++) sum += dot(s, query);
+        return sum / sumNorm;
+    }
+
+    private float[] sum() {
+        float[] sum = new float[dim];
+        for (int s = 0; s < count; s++) {
+            float[] sample = samples.get(s);
+            for (int i = 0; i < dim; i++) sum[i] += sample[i];
+        }
+        return sum;
+    }
+
+    private static float norm(float[] v) {
+        float l2 = 0f;
+        for (float x : v) l2 += x * x;
+        return (float) Math.sqrt(l2);
+    }
+}
@@ -0,0 +1,417 @@
+package pp.facerecognizer.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inverted file with product-quantized residuals (IVF-PQ, Jegou et al.) for galleries too large to
+ * keep even as int8 rows.
+ *
+ * {@link #train} clusters unit vectors into {@code nlist} coarse lists and learns, for each of
+ * {@code m} subspaces, 256 codewords of the residual to the list centroid. An identity then costs
+ * {@code m} code bytes, its label and an 8-byte slot of the label table, see {@link #bytes}. A query scores the {@code nprobe} closest lists using one
+ * asymmetric distance table per query: similarity = q.c + sum_j table[j][code_j].
+ *
+ * Scores are approximate; {@link Search} re-ranks the returned candidates with exact cosine against
+ * its gallery rows.
+ *
+ * Queries take no lock: writers are serialized and publish the lists as one immutable
+ * {@link Lists} snapshot per change. A list only grows in place past the size readers know;
+ * removing from it copies it first.
+ */
+public class IvfPqIndex implements AnnIndex {
+
+    private static final int MAGIC = 0x49565051; // "IVPQ"
+    private static final int VERSION = 1;
+    private static final int MAX_TRAINING_VECTORS = 20000;
+
+    private final int dim;
+    private final int nlist;
+    private final int m;
+    private final int ksub;
+    private final int subDim;
+    private volatile int nprobe;
+
+    // nlist x dim
+    private final float[] coarse;
+    // m x ksub x subDim
+    private final float[] codebooks;
+
+    /** One inverted list; its first {@code size} entries never change. */
+    private static class InvertedList {
+        final int[] labels;
+        // m code bytes per entry
+        final byte[] codes;
+        final int size;
+
+        InvertedList(int[] labels, byte[] codes, int size) {
+            this.labels = labels;
+            this.codes = codes;
+            this.size = size;
+        }
+    }
+
+    /** What queries see: every list as of one finished write. */
+    private static class Lists {
+        final InvertedList[] inverted;
+        final int size;
+
+        Lists(InvertedList[] inverted, int size) {
+            this.inverted = inverted;
+            this.size = size;
+        }
+    }
+
+    private volatile Lists lists;
+    // label -> list << 32 | position, -1 for labels not in the index; guarded by the index lock
+    private long[] positions = new long[0];
+
+    private IvfPqIndex(int dim, int nlist, int m, int ksub, int nprobe, float[] coarse, float[] codebooks) {
+        this.dim = dim;
+        this.nlist = nlist;
+        this.m = m;
+        this.ksub = ksub;
+        this.subDim = dim / m;
+        this.nprobe = nprobe;
+        this.coarse = coarse;
+        this.codebooks = codebooks;
+        InvertedList[] inverted = new InvertedList[nlist];
+        Arrays.fill(inverted, new InvertedList(new int[0], new byte[0], 0));
+        this.lists = new Lists(inverted, 0);
+    }
+
+    /**
+     * Learns the coarse centroids and PQ codebooks offline, e.g. from the enrolled gallery. The
+     * returned index is empty; add the vectors afterwards.
+     *
+     * @param nlist  number of inverted lists, around sqrt(gallery size).
+     * @param m      number of subspaces, must divide the dimension; code bytes per identity.
+     * @param nprobe lists scanned per query.
+     */
+    public static IvfPqIndex train(List<float[]> vectors, int nlist, int m, int nprobe, int iterations) {
+        if (vectors.isEmpty()) throw new IllegalArgumentException("No training vectors");
+        int dim = vectors.get(0).length;
+        if (dim % m != 0) throw new IllegalArgumentException(m + " subspaces do not divide " + dim + " dims");
+
+        Random random = new Random(42);
+        List<float[]> sample = new ArrayList<>();
+        for (float[] v : vectors) sample.add(EmbeddingRows.unit(v));
+        if (sample.size() > MAX_TRAINING_VECTORS) {
+            Collections.shuffle(sample, random);
+            sample = sample.subList(0, MAX_TRAINING_VECTORS);
+        }
+        int n = sample.size();
+        nlist = Math.min(nlist, n);
+        int ksub = Math.min(256, n);
+        int subDim = dim / m;
+
+        float[] points = new float[n * dim];
+        for (int i = 0; i < n; i++) System.arraycopy(sample.get(i), 0, points, i * dim, dim);
+        float[] coarse = kMeans(points, n, dim, nlist, iterations, random);
+
+        // residuals to the nearest coarse centroid
+        float[] residuals = new float[n * dim];
+        for (int i = 0; i < n; i++) {
+            int list = nearest(coarse, nlist, dim, points, i * dim);
+            for (int d = 0; d < dim; d++) {
+                residuals[i * dim + d] = points[i * dim + d] - coarse[list * dim + d];
+            }
+        }
+
+        float[] codebooks = new float[m * ksub * subDim];
+        float[] subPoints = new float[n * subDim];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(residuals, i * dim + j * subDim, subPoints, i * subDim, subDim);
+            }
+            float[] codewords = kMeans(subPoints, n, subDim, ksub, iterations, random);
+            System.arraycopy(codewords, 0, codebooks, j * ksub * subDim, ksub * subDim);
+        }
+
+        return new IvfPqIndex(dim, nlist, m, ksub, Math.min(nprobe, nlist), coarse, codebooks);
+    }
+
+    public void setNprobe(int nprobe) {
+        this.nprobe = Math.max(1, Math.min(nprobe, nlist));
+    }
+
+    @Override
+    public synchronized void add(int label, float[] embedding) {
+        if (embedding.length != dim)
+            throw new IllegalArgumentException("embedding has " + embedding.length + " dims, expected " + dim);
+        if (label < 0) throw new IllegalArgumentException("negative label " + label);
+        InvertedList[] inverted = lists.inverted.clone();
+        int size = lists.size;
+        // the old entry goes in the same publish as the new one
+        if (removeFrom(inverted, label)) size--;
+
+        float[] unit = EmbeddingRows.unit(embedding);
+        int list = nearest(coarse, nlist, dim, unit, 0);
+
+        InvertedList current = inverted[list];
+        int position = current.size;
+        int[] labels = current.labels;
+        byte[] codes = current.codes;
+        if (position == labels.length) {
+            int capacity = Math.max(8, position * 2);
+            labels = Arrays.copyOf(labels, capacity);
+            codes = Arrays.copyOf(codes, capacity * m);
+        }
+        // past the size any reader knows, so written in place
+        labels[position] = label;
+
+        float[] residual = new float[subDim];
+        for (int j = 0; j < m; j++) {
+            for (int d = 0; d < subDim; d++) {
+                int i = j * subDim + d;
+                residual[d] = unit[i] - coarse[list * dim + i];
+            }
+            int code = nearest(codebooks, ksub, subDim, residual, 0, j * ksub * subDim);
+            codes[position * m + j] = (byte) code;
+        }
+        inverted[list] = new InvertedList(labels, codes, position + 1);
+        setPosition(label, list, position);
+        lists = new Lists(inverted, size + 1);
+    }
+
+    @Override
+    public synchronized void remove(int label) {
+        InvertedList[] inverted = lists.inverted.clone();
+        if (removeFrom(inverted, label)) lists = new Lists(inverted, lists.size - 1);
+    }
+
+    // Replaces the list holding label by a copy without it; false if label is not indexed.
+    private boolean removeFrom(InvertedList[] inverted, int label) {
+        if (label < 0 || label >= positions.length || positions[label] < 0) return false;
+        long entry = positions[label];
+        positions[label] = -1;
+
+        // move the list's last entry into the hole, in a copy since readers may hold the list
+        int list = (int) (entry >>> 32);
+        int position = (int) entry;
+        InvertedList current = inverted[list];
+        int[] labels = current.labels.clone();
+        byte[] codes = current.codes.clone();
+        int last = current.size - 1;
+        if (position != last) {
+            int moved = labels[last];
+            labels[position] = moved;
+            System.arraycopy(codes, last * m, codes, position * m, m);
+            positions[moved] = (long) list << 32 | position;
+        }
+        inverted[list] = new InvertedList(labels, codes, last);
+        return true;
+    }
+
+    @Override
+    public SearchResult search(float[] query, int k) {
+        final InvertedList[] inverted = lists.inverted;
+        int probes = Math.min(nprobe, nlist);
+
+        TopK lists = new TopK(probes);
+        float[] coarseSims = new float[nlist];
+        for (int c = 0; c < nlist; c++) {
+            coarseSims[c] = EmbeddingRows.dot(coarse, c * dim, query, dim);
+            if (coarseSims[c] > lists.threshold()) lists.offer(c, coarseSims[c]);
+        }
+
+        // asymmetric distance table, once per query: q_j . codeword_jt
+        float[] table = new float[m * ksub];
+        for (int j = 0; j < m; j++) {
+            for (int t = 0; t < ksub; t++) {
+                int offset = (j * ksub + t) * subDim;
+                float dot = 0f;
+                for (int d = 0; d < subDim; d++) dot += query[j * subDim + d] * codebooks[offset + d];
+                table[j * ksub + t] = dot;
+            }
+        }
+
+        TopK top = new TopK(k);
+        SearchResult probed = lists.toResult();
+        for (int p = 0; p < probed.size(); p++) {
+            int list = probed.getLabel(p);
+            float base = coarseSims[list];
+            byte[] codes = inverted[list].codes;
+            int[] labels = inverted[list].labels;
+            for (int i = 0, size = inverted[list].size; i < size; i++) {
+                float sim = base;
+                int offset = i * m;
+                for (int j = 0; j < m; j++) {
+                    sim += table[j * ksub + (codes[offset + j] & 0xff)];
+                }
+                if (sim > top.threshold()) top.offer(labels[i], sim);
+            }
+        }
+        return top.toResult();
+    }
+
+    @Override
+    public int size() {
+        return lists.size;
+    }
+
+    /** The inverted lists at their allocated capacity, the label table and the trained tables. */
+    @Override
+    public synchronized long bytes() {
+        long bytes = trainedBytes() + (long) positions.length * 8;
+        for (InvertedList list : lists.inverted) {
+            bytes += (long) list.labels.length * 4 + list.codes.length;
+        }
+        return bytes;
+    }
+
+    /** Bytes of the trained tables, independent of the gallery size. */
+    public long trainedBytes() {
+        return (long) (coarse.length + codebooks.length) * 4;
+    }
+
+    @Override
+    public synchronized void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dim);
+            out.writeInt(nlist);
+            out.writeInt(m);
+            out.writeInt(ksub);
+            out.writeInt(nprobe);
+            for (float v : coarse) out.writeFloat(v);
+            for (float v : codebooks) out.writeFloat(v);
+            for (InvertedList list : lists.inverted) {
+                out.writeInt(list.size);
+                for (int i = 0; i < list.size; i++) out.writeInt(list.labels[i]);
+                out.write(list.codes, 0, list.size * m);
+            }
+        }
+    }
+
+    public static IvfPqIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not an IVF-PQ index: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported IVF-PQ index version " + version);
+
+            int dim = in.readInt();
+            int nlist = in.readInt();
+            int m = in.readInt();
+            int ksub = in.readInt();
+            int nprobe = in.readInt();
+            float[] coarse = new float[nlist * dim];
+            for (int i = 0; i < coarse.length; i++) coarse[i] = in.readFloat();
+            float[] codebooks = new float[m * ksub * (dim / m)];
+            for (int i = 0; i < codebooks.length; i++) codebooks[i] = in.readFloat();
+
+            IvfPqIndex index = new IvfPqIndex(dim, nlist, m, ksub, nprobe, coarse, codebooks);
+            InvertedList[] inverted = new InvertedList[nlist];
+            int total = 0;
+            for (int list = 0; list < nlist; list++) {
+                int size = in.readInt();
+                int[] labels = new int[size];
+                byte[] codes = new byte[size * m];
+                for (int i = 0; i < size; i++) {
+                    labels[i] = in.readInt();
+                    index.setPosition(labels[i], list, i);
+                }
+                in.readFully(codes);
+                inverted[list] = new InvertedList(labels, codes, size);
+                total += size;
+            }
+            index.lists = new Lists(inverted, total);
+            return index;
+        }
+    }
+
+    private void setPosition(int label, int list, int position) {
+        if (label >= positions.length) {
+            int length = positions.length;
+            positions = Arrays.copyOf(positions, Math.max(label + 1, Math.max(16, length * 2)));
+            Arrays.fill(positions, length, positions.length, -1);
+        }
+        positions[label] = (long) list << 32 | position;
+    }
+
+    private static int nearest(float[] centroids, int k, int dim, float[] point, int pointOffset) {
+        return nearest(centroids, k, dim, point, pointOffset, 0);
+    }
+
+    // nearest (L2) of k centroids stored from centroidOffset to the point at pointOffset
+    private static int nearest(float[] centroids, int k, int dim, float[] point, int pointOffset,
+                               int centroidOffset) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            int offset = centroidOffset + c * dim;
+            float distance = 0f;
+            for (int d = 0; d < dim; d++) {
+                float diff = point[pointOffset + d] - centroids[offset + d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Lloyd's k-means over n row-major points, seeded with k distinct random points.
+     *
+     * @return k x dim centroids.
+     */
+    private static float[] kMeans(float[] points, int n, int dim, int k, int iterations, Random random) {
+        float[] centroids = new float[k * dim];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        for (int c = 0; c < k; c++) {
+            int pick = c + random.nextInt(n - c);
+            int swap = order[c];
+            order[c] = order[pick];
+            order[pick] = swap;
+            System.arraycopy(points, order[c] * dim, centroids, c * dim, dim);
+        }
+
+        int[] assignment = new int[n];
+        float[] sums = new float[k * dim];
+        int[] counts = new int[k];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            boolean changed = iteration == 0;
+            for (int i = 0; i < n; i++) {
+                int c = nearest(centroids, k, dim, points, i * dim);
+                if (c != assignment[i]) changed = true;
+                assignment[i] = c;
+            }
+            if (!changed) break;
+
+            Arrays.fill(sums, 0f);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                int c = assignment[i];
+                counts[c]++;
+                for (int d = 0; d < dim; d++) sums[c * dim + d] += points[i * dim + d];
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    // re-seed an empty cluster on a random point
+                    System.arraycopy(points, random.nextInt(n) * dim, centroids, c * dim, dim);
+                    continue;
+                }
+                for (int d = 0; d < dim; d++) centroids[c * dim + d] = sums[c * dim + d] / counts[c];
+            }
+        }
+        return centroids;
+    }
+}
@@ -0,0 +1,75 @@
+package pp.facerecognizer.search;
+
+import java.util.Arrays;
+
+/**
+ * Growable binary min-heap of (node, key) pairs on primitive arrays, for graph searches that push
+ * and pop far too often for boxed PriorityQueue entries. Push negated keys for a max-heap.
+ */
+class NodeHeap {
+
+    private int[] nodes;
+    private float[] keys;
+    private int size;
+
+    NodeHeap(int capacity) {
+        nodes = new int[Math.max(capacity, 1)];
+        keys = new float[Math.max(capacity, 1)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int peekNode() {
+        return nodes[0];
+    }
+
+    float peekKey() {
+        return keys[0];
+    }
+
+    void push(int node, float key) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (keys[parent] <= key) break;
+            nodes[i] = nodes[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        nodes[i] = node;
+        keys[i] = key;
+    }
+
+    /** Removes the entry with the smallest key and returns its node. */
+    int pop() {
+        int top = nodes[0];
+        size--;
+        if (size > 0) {
+            int node = nodes[size];
+            float key = keys[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+                if (keys[child] >= key) break;
+                nodes[i] = nodes[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+        }
+        return top;
+    }
+}
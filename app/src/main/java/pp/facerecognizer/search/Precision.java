@@ -0,0 +1,13 @@
+package pp.facerecognizer.search;
+
+/**
+ * How gallery embeddings are stored, see {@link EmbeddingRows}.
+ */
+public enum Precision {
+    /** 4 bytes per dimension, exact. */
+    FLOAT32,
+    /** 2 bytes per dimension, IEEE half precision. */
+    FP16,
+    /** 1 byte per dimension plus one float scale per vector. */
+    INT8
+}
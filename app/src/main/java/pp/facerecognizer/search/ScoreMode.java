@@ -0,0 +1,13 @@
+package pp.facerecognizer.search;
+
+/**
+ * How a query is scored against an identity enrolled from several photos.
+ */
+public enum ScoreMode {
+    /** Cosine to the normalized mean of the samples; one dot product per identity. */
+    CENTROID,
+    /** Best cosine over all samples. */
+    MAX,
+    /** Mean of the k best sample cosines. */
+    TOP_K_MEAN
+}
@@ -1,39 +1,660 @@
 package pp.facerecognizer.search;
 
 import androidx.core.util.Pair;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
-import pp.facerecognizer.recognition.MxNetUtils;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import pp.facerecognizer.recognition.FacePredictor;
 
 
 public class Search {
 
-    private ArrayList<float[]> storage_list = new ArrayList<>();
+    private static final int DEFAULT_TOP_K = 3;
+    private static final int DEFAULT_RERANK_CANDIDATES = 5;
+    // approximate index candidates re-scored exactly against the gallery rows
+    private static final int ANN_CANDIDATES = 32;
+    // below this many rows handing partitions to other threads costs more than it saves
+    private static final int DEFAULT_PARALLEL_MIN_ROWS = 20000;
+    // fewer dead rows are not worth a rewrite of the gallery
+    private static final int COMPACTION_MIN_TOMBSTONES = 64;
 
+    /**
+     * An immutable state of the gallery. Queries read whichever snapshot is current without
+     * locking; writers copy what they change and publish a new snapshot in one atomic swap.
+     *
+     * Rows are dense and map to labels through {@code labels}. Deleting, relabeling or
+     * re-enrolling an identity only marks its old row as a tombstone, which the scan skips;
+     * {@link #compact} drops tombstoned rows later.
+     */
+    private static class Snapshot {
+        // one centroid per row, scanned first
+        final EmbeddingRows storage_list;
+        // every enrollment sample per row, only touched when reranking
+        final List<IdentityTemplate> templates;
+        // row -> label
+        final int[] labels;
+        // label -> row, -1 for labels without a live row
+        final int[] rows;
+        final BitSet tombstones;
+
+        Snapshot(EmbeddingRows storage_list, List<IdentityTemplate> templates, int[] labels,
+                 int[] rows, BitSet tombstones) {
+            this.storage_list = storage_list;
+            this.templates = templates;
+            this.labels = labels;
+            this.rows = rows;
+            this.tombstones = tombstones;
+        }
+
+        int row(int label) {
+            return label >= 0 && label < rows.length ? rows[label] : -1;
+        }
+    }
+
+    /**
+     * Worker threads an exact scan is partitioned across, replaced as a whole so a scan reads
+     * one consistent pair.
+     */
+    private static class ScanPool {
+        // null when threads is 1
+        final ExecutorService executor;
+        final int threads;
+
+        ScanPool(int threads) {
+            this.threads = Math.max(1, threads);
+            if (this.threads == 1) {
+                executor = null;
+                return;
+            }
+            final AtomicInteger number = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+                Thread thread = new Thread(runnable, "gallery-scan-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // one thread per core, shared by every Search; only started by the first large scan
+    private static class DefaultScanPool {
+        static final ScanPool INSTANCE = new ScanPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    private final AtomicReference<Snapshot> snapshot;
+    // serializes writers; readers never take it
+    private final Object writeLock = new Object();
+
+    // replaces the centroid scan when set, see setIndex
+    private volatile AnnIndex index;
+    // the index being rebuilt by compact, kept up to date alongside index; guarded by writeLock
+    private AnnIndex rebuilding;
+
+    // compaction runs here once enough rows are tombstones
+    private ExecutorService compactor;
+    private boolean compactionScheduled;
+
+    // exact scans of at least parallelMinRows rows are split across scanPool, or the shared
+    // DefaultScanPool while it is null
+    private volatile ScanPool scanPool;
+    private volatile int parallelMinRows = DEFAULT_PARALLEL_MIN_ROWS;
+
+    private volatile ScoreMode scoreMode = ScoreMode.CENTROID;
+    private volatile int topK = DEFAULT_TOP_K;
+    private volatile int rerankCandidates = DEFAULT_RERANK_CANDIDATES;
+
+    public Search() {
+        this(Precision.FLOAT32);
+    }
+
+    /**
+     * @param precision how gallery centroids and samples are stored, see QuantizationBenchmark in
+     *                  the unit tests for the accuracy each option costs.
+     */
+    public Search(Precision precision) {
+        snapshot = new AtomicReference<>(new Snapshot(
+                EmbeddingRows.create(precision, FacePredictor.EMBEDDING_SIZE),
+                Collections.<IdentityTemplate>emptyList(), new int[0], new int[0], new BitSet()));
+    }
+
+    /**
+     * Enrolls (or re-enrolls) {@code label} from all of its embeddings.
+     */
     public void storage(int label, ArrayList<float[]> emb_list) {
-        if (label + 1 > storage_list.size()) storage_list.add(emb_list.get(0));
-        else storage_list.set(label, emb_list.get(0));
+        storageAll(Collections.singletonMap(label, emb_list));
+    }
+
+    /**
+     * Enrolls every label of {@code enrollments} and publishes them as one new snapshot, e.g. a
+     * whole gallery loaded from disk, which copies the rows once instead of once per identity.
+     * Queries running meanwhile keep searching the previous snapshot.
+     */
+    public void storageAll(Map<Integer, ? extends List<float[]>> enrollments) {
+        Batch batch = newBatch();
+        for (Map.Entry<Integer, ? extends List<float[]>> enrollment : enrollments.entrySet()) {
+            batch.add(enrollment.getKey(), enrollment.getValue());
+        }
+        batch.publish();
+    }
+
+    /**
+     * Like {@link #storageAll}, from the views of a mapped {@link GalleryFile} that
+     * {@link GalleryFile#replay} hands out, so loading a gallery does not first copy every sample
+     * into a float[].
+     */
+    public void storageMapped(Map<Integer, ? extends List<FloatBuffer>> enrollments) {
+        Batch batch = newBatch();
+        for (Map.Entry<Integer, ? extends List<FloatBuffer>> enrollment : enrollments.entrySet()) {
+            batch.add(enrollment.getKey(), IdentityTemplate.mapped(enrollment.getValue(),
+                    getPrecision(), FacePredictor.EMBEDDING_SIZE));
+        }
+        batch.publish();
+    }
+
+    /**
+     * Enrollments staged to be published as one snapshot, e.g. an import read in chunks: each one
+     * is encoded as it is added, the gallery rows are copied once by {@link #publish}, and a batch
+     * that is never published leaves the gallery as it was.
+     */
+    public class Batch {
+        private final List<Integer> labels = new ArrayList<>();
+        private final List<IdentityTemplate> templates = new ArrayList<>();
+
+        private Batch() {}
+
+        public void add(int label, List<float[]> embeddings) {
+            add(label, new IdentityTemplate(embeddings, getPrecision(), FacePredictor.EMBEDDING_SIZE));
+        }
+
+        private void add(int label, IdentityTemplate template) {
+            labels.add(label);
+            templates.add(template);
+        }
+
+        public void publish() {
+            publishTemplates(labels, templates);
+            labels.clear();
+            templates.clear();
+        }
+    }
+
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    private void publishTemplates(List<Integer> enrolled, List<IdentityTemplate> staged) {
+        if (enrolled.isEmpty()) return;
+        synchronized (writeLock) {
+            Snapshot current = snapshot.get();
+            EmbeddingRows storage_list = current.storage_list.copy();
+            List<IdentityTemplate> templates = new ArrayList<>(current.templates.size() + staged.size());
+            templates.addAll(current.templates);
+            int[] labels = Arrays.copyOf(current.labels, current.labels.length + enrolled.size());
+            int[] rows = current.rows;
+            BitSet tombstones = current.tombstones;
+
+            for (int i = 0; i < enrolled.size(); i++) {
+                int label = enrolled.get(i);
+                if (label >= rows.length) rows = grow(rows, label + 1);
+                else if (rows == current.rows) rows = rows.clone();
+
+                // a re-enrolled identity gets a new row, the old one is dropped by compaction
+                int old = rows[label];
+                if (old >= 0) {
+                    if (tombstones == current.tombstones) tombstones = (BitSet) tombstones.clone();
+                    tombstones.set(old);
+                }
+
+                IdentityTemplate template = staged.get(i);
+                if (template.getPrecision() != storage_list.precision()) {
+                    // encoded before an index re-encoded the gallery, see setIndex
+                    template = new IdentityTemplate(template.getSamples(), storage_list.precision(),
+                            storage_list.dim());
+                }
+                int row = storage_list.size();
+                storage_list.set(row, template.getCentroid());
+                templates.add(template);
+                labels[row] = label;
+                rows[label] = row;
+            }
+            publish(new Snapshot(storage_list, Collections.unmodifiableList(templates),
+                    Arrays.copyOf(labels, storage_list.size()), rows, tombstones));
+
+            for (int label : enrolled) {
+                indexAdd(label, storage_list.get(rows[label]));
+            }
+        }
+    }
+
+    /**
+     * Removes {@code label} from the gallery. Its row is skipped from the next query on and
+     * freed by a later compaction.
+     *
+     * @return false if the label was not enrolled.
+     */
+    public boolean delete(int label) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot.get();
+            int row = current.row(label);
+            if (row < 0) return false;
+
+            int[] rows = current.rows.clone();
+            rows[label] = -1;
+            BitSet tombstones = (BitSet) current.tombstones.clone();
+            tombstones.set(row);
+            publish(new Snapshot(current.storage_list, current.templates, current.labels, rows, tombstones));
+
+            indexRemove(label);
+            return true;
+        }
+    }
+
+    /**
+     * Moves the enrollment of {@code from} to {@code to}, e.g. when someone was enrolled under
+     * the wrong person. An enrollment {@code to} already had is deleted; {@code from} ends up
+     * not enrolled.
+     *
+     * @return false if {@code from} was not enrolled.
+     */
+    public boolean relabel(int from, int to) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot.get();
+            int row = current.row(from);
+            if (row < 0) return false;
+            if (from == to) return true;
+
+            int[] labels = current.labels.clone();
+            labels[row] = to;
+            int[] rows = grow(current.rows, Math.max(current.rows.length, to + 1));
+            BitSet tombstones = current.tombstones;
+            if (rows[to] >= 0) {
+                tombstones = (BitSet) tombstones.clone();
+                tombstones.set(rows[to]);
+            }
+            rows[from] = -1;
+            rows[to] = row;
+            publish(new Snapshot(current.storage_list, current.templates, labels, rows, tombstones));
+
+            indexRemove(from);
+            indexAdd(to, current.storage_list.get(row));
+            return true;
+        }
+    }
+
+    /**
+     * Rewrites the gallery without its tombstones: the rows are copied densely and published as
+     * a new snapshot, then an index that keeps removed entries, like {@link HnswIndex}, is
+     * rebuilt next to the live one and swapped in. Queries keep running throughout; writers
+     * wait at most for one row copy or one index insert at a time.
+     *
+     * Runs on its own thread once enough rows are tombstones; call it directly to compact now.
+     */
+    public void compact() {
+        final AnnIndex ann;
+        final AnnIndex fresh;
+        final int[] live;
+        synchronized (writeLock) {
+            compactionScheduled = false;
+            Snapshot current = snapshot.get();
+            BitSet removed = current.tombstones;
+            if (!removed.isEmpty()) {
+                List<IdentityTemplate> templates = new ArrayList<>(current.templates.size() - removed.cardinality());
+                int[] labels = new int[current.labels.length - removed.cardinality()];
+                int[] rows = current.rows.clone();
+                int size = 0;
+                for (int row = removed.nextClearBit(0); row < current.labels.length;
+                     row = removed.nextClearBit(row + 1)) {
+                    templates.add(current.templates.get(row));
+                    labels[size] = current.labels[row];
+                    rows[labels[size]] = size;
+                    size++;
+                }
+                current = new Snapshot(current.storage_list.compact(removed),
+                        Collections.unmodifiableList(templates), labels, rows, new BitSet());
+                publish(current);
+            }
+
+            ann = index;
+            fresh = ann != null && rebuilding == null ? ann.emptyCopy() : null;
+            if (fresh == null) return;
+            rebuilding = fresh;
+            live = current.labels;
+        }
+
+        // writers update the fresh index as well meanwhile; each label is re-read under the
+        // lock so a concurrent re-enrollment or delete is never overwritten with stale data
+        for (int label : live) {
+            synchronized (writeLock) {
+                Snapshot current = snapshot.get();
+                int row = current.row(label);
+                if (row >= 0) fresh.add(label, current.storage_list.get(row));
+            }
+        }
+        synchronized (writeLock) {
+            if (index == ann) index = fresh;
+            rebuilding = null;
+        }
+    }
+
+    /** Rows of deleted, relabeled or re-enrolled identities not compacted yet. */
+    public int getTombstoneCount() {
+        return snapshot.get().tombstones.cardinality();
+    }
+
+    /** Number of enrolled identities. */
+    public int size() {
+        Snapshot current = snapshot.get();
+        return current.labels.length - current.tombstones.cardinality();
+    }
+
+    /**
+     * Centroids of up to {@code max} enrolled identities spread over the gallery, e.g. to train
+     * an {@link IvfPqIndex} on.
+     */
+    public List<float[]> getCentroids(int max) {
+        Snapshot current = snapshot.get();
+        int rows = current.storage_list.size();
+        int step = Math.max(1, rows / Math.max(1, max));
+        List<float[]> centroids = new ArrayList<>(Math.min(rows, max));
+        for (int row = 0; row < rows && centroids.size() < max; row += step) {
+            if (!current.tombstones.get(row)) centroids.add(current.storage_list.get(row));
+        }
+        return centroids;
+    }
+
+    // publishes under writeLock and schedules a compaction once a quarter of the rows are dead
+    private void publish(Snapshot next) {
+        snapshot.set(next);
+
+        int dead = next.tombstones.cardinality();
+        if (compactionScheduled || dead < COMPACTION_MIN_TOMBSTONES || dead * 4 < next.labels.length) return;
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "gallery-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        compactionScheduled = true;
+        compactor.execute(this::compact);
+    }
+
+    private void indexAdd(int label, float[] centroid) {
+        AnnIndex ann = index;
+        if (ann != null) ann.add(label, centroid);
+        if (rebuilding != null) rebuilding.add(label, centroid);
+    }
+
+    private void indexRemove(int label) {
+        AnnIndex ann = index;
+        if (ann != null) ann.remove(label);
+        if (rebuilding != null) rebuilding.remove(label);
+    }
+
+    private static int[] grow(int[] rows, int length) {
+        int[] grown = Arrays.copyOf(rows, Math.max(length, rows.length));
+        Arrays.fill(grown, rows.length, grown.length, -1);
+        return grown;
+    }
+
+    /**
+     * Finds centroid candidates with an approximate index instead of scanning every identity,
+     * e.g. an {@link HnswIndex} or {@link IvfPqIndex} for very large watchlists. Its candidates are
+     * re-scored with exact cosine. Identities already enrolled are added to it; pass null to go
+     * back to the exact scan.
+     *
+     * The rows then only re-score a few candidates per query, so {@link #setPrecision} to
+     * {@link Precision#INT8} saves most of their memory for little accuracy.
+     */
+    public void setIndex(AnnIndex ann) {
+        synchronized (writeLock) {
+            if (ann != null) {
+                Snapshot current = snapshot.get();
+                for (int label = 0; label < current.rows.length; label++) {
+                    int row = current.rows[label];
+                    if (row >= 0) ann.add(label, current.storage_list.get(row));
+                }
+            }
+            index = ann;
+        }
+    }
+
+    /**
+     * Re-encodes every row and template at {@code precision}, e.g. int8 once an index finds the
+     * candidates. Templates are re-encoded from what they hold, so a narrower precision is not
+     * undone by going back to a wider one; a {@link GalleryFile} keeps the float32 samples.
+     */
+    public void setPrecision(Precision precision) {
+        synchronized (writeLock) {
+            requantize(precision);
+        }
+    }
+
+    // under writeLock
+    private void requantize(Precision precision) {
+        Snapshot current = snapshot.get();
+        if (current.storage_list.precision() == precision) return;
+
+        EmbeddingRows storage_list = EmbeddingRows.create(precision, current.storage_list.dim(),
+                current.storage_list.size());
+        List<IdentityTemplate> templates = new ArrayList<>(current.templates.size());
+        for (int row = 0; row < current.storage_list.size(); row++) {
+            storage_list.set(row, current.storage_list.get(row));
+            templates.add(new IdentityTemplate(current.templates.get(row).getSamples(), precision,
+                    storage_list.dim()));
+        }
+        publish(new Snapshot(storage_list, Collections.unmodifiableList(templates), current.labels,
+                current.rows, current.tombstones));
+    }
+
+    /**
+     * Splits exact scans of at least {@code minRows} identities into {@code threads} partitions
+     * scanned on a worker pool of this search; smaller galleries keep the single-threaded scan.
+     * Without this call scans of at least 20000 identities use one thread per core, on a pool
+     * shared by every search. See ParallelScanBenchmark in the unit tests for where the
+     * crossover lies.
+     *
+     * @param threads 1 turns the parallel scan off.
+     */
+    public synchronized void setParallelScan(int threads, int minRows) {
+        ScanPool previous = scanPool;
+        parallelMinRows = minRows;
+        scanPool = new ScanPool(threads);
+        // scans already running on it finish first
+        if (previous != null && previous.executor != null) previous.executor.shutdown();
+    }
+
+    /**
+     * Chooses how identities are scored. Every mode first ranks identities by centroid; the other
+     * modes then rescore the best {@code max(k, rerankCandidates)} of them from their samples.
+     *
+     * @param topK number of best samples averaged by {@link ScoreMode#TOP_K_MEAN}.
+     */
+    public void setScoreMode(ScoreMode mode, int topK, int rerankCandidates) {
+        this.scoreMode = mode;
+        this.topK = topK;
+        this.rerankCandidates = rerankCandidates;
+    }
+
+    public ScoreMode getScoreMode() {
+        return scoreMode;
     }
 
     public Pair<Integer, Float> predict(float[] source_emb) {
-        float max = 0f;
-        int index = 0;
-        for (int i=0; i<storage_list.size(); i++){
-            float sim = MxNetUtils.calCosineSimilarity(source_emb, storage_list.get(i));
-            if (sim > max) {
-                max = sim;
-                index = i;
+        SearchResult result = predictTopK(source_emb, 1);
+        if (result.size() == 0 || result.getScore() <= 0f) return new Pair<>(0, 0f);
+        return new Pair<>(result.getLabel(), result.getScore());
+    }
+
+    /**
+     * The {@code k} best identities for one embedding; k >= 2 gives the runner-up margin.
+     */
+    public SearchResult predictTopK(float[] source_emb, int k) {
+        return predictBatch(source_emb, k)[0];
+    }
+
+    /**
+     * Searches several embeddings of one frame in a single pass over the gallery: each gallery
+     * row is loaded once and scored against every query while it is in cache.
+     *
+     * @param embeddings an N x dim row-major block, as returned by the embedding engines.
+     * @return one result per embedding, in order.
+     */
+    public SearchResult[] predictBatch(float[] embeddings, int k) {
+        // one snapshot for the whole batch, however many enrollments are published meanwhile
+        final Snapshot gallery = snapshot.get();
+        final int dim = gallery.storage_list.dim();
+        int count = embeddings.length / dim;
+
+        float[][] queries = new float[count][];
+        for (int q = 0; q < count; q++) {
+            queries[q] = EmbeddingRows.unit(Arrays.copyOfRange(embeddings, q * dim, (q + 1) * dim));
+        }
+
+        ScoreMode mode = scoreMode;
+        int candidates = mode == ScoreMode.CENTROID ? k : Math.max(k, rerankCandidates);
+        SearchResult[] centroidMatches = new SearchResult[count];
+        AnnIndex ann = index;
+        if (ann != null) {
+            for (int q = 0; q < count; q++) {
+                centroidMatches[q] = rescore(gallery,
+                        ann.search(queries[q], Math.max(candidates, ANN_CANDIDATES)), queries[q], candidates);
+            }
+        } else {
+            scan(gallery, queries, candidates, centroidMatches);
+        }
+
+        SearchResult[] results = new SearchResult[count];
+        for (int q = 0; q < count; q++) {
+            SearchResult centroids = centroidMatches[q];
+            if (mode == ScoreMode.CENTROID) {
+                results[q] = centroids;
+                continue;
+            }
+
+            // rescore the best centroids from their samples
+            TopK reranked = new TopK(k);
+            for (int j = 0; j < centroids.size(); j++) {
+                int label = centroids.getLabel(j);
+                IdentityTemplate template = gallery.templates.get(gallery.row(label));
+                reranked.offer(label, template.score(queries[q], mode, topK));
+            }
+            results[q] = reranked.toResult();
+        }
+        return results;
+    }
+
+    // exact cosine of approximate candidates, e.g. from the PQ codes of an IvfPqIndex
+    private SearchResult rescore(Snapshot gallery, SearchResult approximate, float[] query, int candidates) {
+        TopK top = new TopK(candidates);
+        for (int j = 0; j < approximate.size(); j++) {
+            int label = approximate.getLabel(j);
+            // the index may already hold labels changed after this snapshot was taken
+            int row = gallery.row(label);
+            if (row < 0) continue;
+            top.offer(label, gallery.storage_list.cosine(row, query));
+        }
+        return top.toResult();
+    }
+
+    // exact centroid scan, partitioned across the scan pool for large galleries
+    private void scan(Snapshot gallery, float[][] queries, int candidates, SearchResult[] results) {
+        final int rows = gallery.storage_list.size();
+        ScanPool pool = null;
+        if (rows >= parallelMinRows) {
+            pool = scanPool;
+            if (pool == null) pool = DefaultScanPool.INSTANCE;
+        }
+
+        if (pool == null || pool.executor == null) {
+            scanSerial(gallery, queries, candidates, results);
+            return;
+        }
+
+        final int threads = pool.threads;
+        List<Callable<TopK[]>> partitions = new ArrayList<>(threads);
+        for (int p = 0; p < threads; p++) {
+            final int from = (int) ((long) rows * p / threads);
+            final int to = (int) ((long) rows * (p + 1) / threads);
+            partitions.add(() -> scanRange(gallery, queries, candidates, from, to));
+        }
+
+        TopK[] merged = new TopK[queries.length];
+        for (int q = 0; q < queries.length; q++) merged[q] = new TopK(candidates);
+        try {
+            for (Future<TopK[]> partition : pool.executor.invokeAll(partitions)) {
+                TopK[] heaps = partition.get();
+                for (int q = 0; q < queries.length; q++) {
+                    SearchResult partial = heaps[q].toResult();
+                    for (int j = 0; j < partial.size(); j++) {
+                        merged[q].offer(partial.getLabel(j), partial.getScore(j));
+                    }
+                }
             }
+        } catch (RejectedExecutionException e) {
+            // setParallelScan shut the pool down since this scan read it
+            scanSerial(gallery, queries, candidates, results);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Gallery scan interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Gallery scan failed", e.getCause());
         }
+        for (int q = 0; q < queries.length; q++) results[q] = merged[q].toResult();
+    }
 
-        return new Pair<>(index, max);
+    private void scanSerial(Snapshot gallery, float[][] queries, int candidates, SearchResult[] results) {
+        TopK[] heaps = scanRange(gallery, queries, candidates, 0, gallery.storage_list.size());
+        for (int q = 0; q < queries.length; q++) results[q] = heaps[q].toResult();
     }
 
-    // singleton for the easy access
-    private static Search search;
-    public static Search getInstance() {
-        if (search == null) {
-            search = new Search();
+    // rows outer so each row is loaded once for all queries
+    private TopK[] scanRange(Snapshot gallery, float[][] queries, int candidates, int from, int to) {
+        final EmbeddingRows storage_list = gallery.storage_list;
+        final int[] labels = gallery.labels;
+        final BitSet tombstones = gallery.tombstones;
+        TopK[] heaps = new TopK[queries.length];
+        for (int q = 0; q < queries.length; q++) heaps[q] = new TopK(candidates);
+
+        for (int i = from; i < to; i++) {
+            if (tombstones.get(i)) continue;
+            for (int q = 0; q < queries.length; q++) {
+                float sim = storage_list.cosine(i, queries[q]);
+                if (sim > heaps[q].threshold()) heaps[q].offer(labels[i], sim);
+            }
         }
-        return search;
+        return heaps;
+    }
+
+    /** The enrolled template of {@code label}, or null if the label is not enrolled. */
+    public IdentityTemplate getTemplate(int label) {
+        Snapshot current = snapshot.get();
+        int row = current.row(label);
+        return row < 0 ? null : current.templates.get(row);
+    }
+
+    public Precision getPrecision() {
+        return snapshot.get().storage_list.precision();
+    }
+
+    /** Bytes held by the gallery centroids, the samples of every template and the index. */
+    public long getMemoryBytes() {
+        Snapshot current = snapshot.get();
+        long bytes = current.storage_list.bytes();
+        for (IdentityTemplate template : current.templates) bytes += template.bytes();
+        AnnIndex ann = index;
+        return ann == null ? bytes : bytes + ann.bytes();
     }
 }
@@ -0,0 +1,59 @@
+package pp.facerecognizer.search;
+
+/**
+ * The k best identities for one query, best first, with the margin to the runner-up for open-set
+ * rejection.
+ */
+public class SearchResult {
+
+    private final int[] labels;
+    private final float[] scores;
+
+    SearchResult(int[] labels, float[] scores) {
+        this.labels = labels;
+        this.scores = scores;
+    }
+
+    /** Number of identities returned, at most k. */
+    public int size() {
+        return labels.length;
+    }
+
+    public int getLabel(int rank) {
+        return labels[rank];
+    }
+
+    public float getScore(int rank) {
+        return scores[rank];
+    }
+
+    /** Best label, or -1 when the gallery is empty. */
+    public int getLabel() {
+        return labels.length > 0 ? labels[0] : -1;
+    }
+
+    /** Best score, or 0 when the gallery is empty. */
+    public float getScore() {
+        return scores.length > 0 ? scores[0] : 0f;
+    }
+
+    /**
+     * Best score minus the runner-up's; the best score itself when there is no runner-up. Needs a
+     * search with k >= 2.
+     */
+    public float getMargin() {
+        if (scores.length == 0) return 0f;
+        if (scores.length == 1) return scores[0];
+        return scores[0] - scores[1];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < labels.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(labels[i]).append(String.format(":%.3f", scores[i]));
+        }
+        return builder.append("]").toString();
+    }
+}
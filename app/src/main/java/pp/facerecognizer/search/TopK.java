@@ -0,0 +1,72 @@
+package pp.facerecognizer.search;
+
+/**
+ * Bounded min-heap keeping the k highest scores seen, in O(log k) per offer.
+ */
+class TopK {
+
+    private final int[] labels;
+    private final float[] scores;
+    private int size;
+
+    TopK(int k) {
+        labels = new int[k];
+        scores = new float[k];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /** Lowest score kept once full, i.e. the score a new entry has to beat. */
+    float threshold() {
+        return size < scores.length ? -Float.MAX_VALUE : scores[0];
+    }
+
+    void offer(int label, float score) {
+        if (scores.length == 0) return;
+        if (size < scores.length) {
+            int i = size++;
+            // sift up
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (scores[parent] <= score) break;
+                labels[i] = labels[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            labels[i] = label;
+            scores[i] = score;
+        } else if (score > scores[0]) {
+            siftDown(label, score);
+        }
+    }
+
+    private void siftDown(int label, float score) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && scores[child + 1] < scores[child]) child++;
+            if (scores[child] >= score) break;
+            labels[i] = labels[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        labels[i] = label;
+        scores[i] = score;
+    }
+
+    /** Drains the heap into a best-first result. */
+    SearchResult toResult() {
+        int[] sortedLabels = new int[size];
+        float[] sortedScores = new float[size];
+        for (int i = size - 1; i >= 0; i--) {
+            sortedLabels[i] = labels[0];
+            sortedScores[i] = scores[0];
+            size--;
+            if (size > 0) siftDown(labels[size], scores[size]);
+        }
+        return new SearchResult(sortedLabels, sortedScores);
+    }
+}
@@ -60,6 +60,18 @@ public class MultiBoxTracker {
     // Consider object to be lost if correlation falls below this threshold.
     private static final float MIN_CORRELATION = 0.3f;
 
+    // A detection takes over the cached identity of the track it overlaps by at least this IoU.
+    private static final float MIN_IDENTITY_IOU = 0.5f;
+
+    // Re-embed a tracked face once the track correlation decays below this level,
+    private static final float IDENTITY_CORRELATION = 0.85f;
+
+    // once the face grows wider than this factor, since a larger face embeds better,
+    private static final float IDENTITY_MAX_GROWTH = 1.3f;
+
+    // or when its identity is older than this.
+    private static final long IDENTITY_REFRESH_MS = 2000;
+
     private static final int[] COLORS = {
             Color.BLUE, Color.RED, Color.GREEN, Color.YELLOW, Color.CYAN, Color.MAGENTA, Color.WHITE,
             Color.parseColor("#55FF55"), Color.parseColor("#FFA500"), Color.parseColor("#FF8888"),
@@ -79,6 +91,7 @@ public class MultiBoxTracker {
         float detectionConfidence;
         int color;
         String title;
+        TrackedIdentity identity;
     }
 
     private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
@@ -162,6 +175,74 @@ public class MultiBoxTracker {
         processResults(timestamp, results, frame);
     }
 
+    /**
+     * The identity cached with the track that best overlaps a new detection, or null when the face
+     * should be embedded again: no track matches, its correlation decayed, the face grew a lot
+     * or the identity is due for a refresh.
+     *
+     * @param frameRect the detection in preview frame coordinates.
+     */
+    public synchronized TrackedIdentity getCachedIdentity(final RectF frameRect, final long now) {
+        if (objectTracker == null) {
+            return null;
+        }
+
+        TrackedRecognition best = null;
+        float bestIou = MIN_IDENTITY_IOU;
+        for (final TrackedRecognition recognition : trackedObjects) {
+            if (recognition.identity == null) {
+                continue;
+            }
+            final RectF trackedPos = recognition.trackedObject.getTrackedPositionInPreviewFrame();
+            if (trackedPos == null) {
+                continue;
+            }
+            final float iou = intersectOverUnion(trackedPos, frameRect);
+            if (iou >= bestIou) {
+                bestIou = iou;
+                best = recognition;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        final TrackedIdentity identity = best.identity;
+        if (best.trackedObject.getCurrentCorrelation() < IDENTITY_CORRELATION
+                || frameRect.width() > identity.getFaceWidth() * IDENTITY_MAX_GROWTH
+                || now - identity.getEmbeddedAt() > IDENTITY_REFRESH_MS) {
+            return null;
+        }
+        return identity;
+    }
+
+    /**
+     * Where the faces being tracked are now, in preview frame coordinates, e.g. to detect only
+     * around them; empty without native tracking.
+     */
+    public synchronized List<RectF> getTrackedRegions() {
+        final List<RectF> regions = new LinkedList<RectF>();
+        if (objectTracker == null) {
+            return regions;
+        }
+        for (final TrackedRecognition recognition : trackedObjects) {
+            final RectF trackedPos = recognition.trackedObject.getTrackedPositionInPreviewFrame();
+            if (trackedPos != null) {
+                regions.add(trackedPos);
+            }
+        }
+        return regions;
+    }
+
+    private static float intersectOverUnion(final RectF a, final RectF b) {
+        final RectF intersection = new RectF();
+        if (!intersection.setIntersect(a, b)) {
+            return 0.0f;
+        }
+        final float intersectArea = intersection.width() * intersection.height();
+        return intersectArea / (a.width() * a.height() + b.width() * b.height() - intersectArea);
+    }
+
     public synchronized void draw(final Canvas canvas) {
         final boolean rotated = sensorOrientation % 180 == 90;
         final float multiplier =
@@ -348,6 +429,11 @@ public class MultiBoxTracker {
                     // If track for the existing object is still going strong and the pp.facerecognizer.detection score was
                     // good, reject this new object.
                     potentialObject.stopTracking();
+                    // but keep the fresher identity if it is the same face
+                    if (intersectOverUnion >= MIN_IDENTITY_IOU && potential.second.getIdentity() != null) {
+                        trackedRecognition.identity = potential.second.getIdentity();
+                        trackedRecognition.title = potential.second.getTitle();
+                    }
                     return;
                 } else {
                     removeList.add(trackedRecognition);
@@ -414,6 +500,7 @@ public class MultiBoxTracker {
         trackedRecognition.detectionConfidence = potential.first;
         trackedRecognition.trackedObject = potentialObject;
         trackedRecognition.title = potential.second.getTitle();
+        trackedRecognition.identity = potential.second.getIdentity();
 
         // Use the color from a replaced object before taking one from the color queue.
         trackedRecognition.color =
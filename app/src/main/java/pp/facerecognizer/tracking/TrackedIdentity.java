@@ -0,0 +1,53 @@
+package pp.facerecognizer.tracking;
+
+/**
+ * The identity last computed for a tracked face: its embedding, the gallery match and when and
+ * at what size it was embedded. {@link MultiBoxTracker} keeps it with the track, so following
+ * frames can reuse it instead of embedding and searching the same face again.
+ */
+public final class TrackedIdentity {
+    private final float[] embedding;
+    private final String id;
+    private final String title;
+    private final float score;
+    private final float faceWidth;
+    private final long embeddedAt;
+
+    /**
+     * @param faceWidth  width of the face in preview frame pixels when it was embedded.
+     * @param embeddedAt {@link System#currentTimeMillis} of the embedding.
+     */
+    public TrackedIdentity(float[] embedding, String id, String title, float score,
+                           float faceWidth, long embeddedAt) {
+        this.embedding = embedding;
+        this.id = id;
+        this.title = title;
+        this.score = score;
+        this.faceWidth = faceWidth;
+        this.embeddedAt = embeddedAt;
+    }
+
+    public float[] getEmbedding() {
+        return embedding;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    public float getFaceWidth() {
+        return faceWidth;
+    }
+
+    public long getEmbeddedAt() {
+        return embeddedAt;
+    }
+}
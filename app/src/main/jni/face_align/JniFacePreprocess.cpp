@@ -119,38 +119,32 @@ jobject mat2bitmap(JNIEnv *env, cv::Mat &src, bool needPremultiplyAlpha, jobject
 
 
 
-extern "C" JNIEXPORT jobject JNICALL
-Java_pp_facerecognizer_align_FacePreprocess_facePreprocess(JNIEnv *env, jobject instance, \
-        jobject _bitmap, jobjectArray _jlandmark) {
-
-
-    jint i,j;
-
-    int size = env->GetArrayLength( _jlandmark);//获得行数
-
-    jarray myarray = (jarray)env->GetObjectArrayElement(_jlandmark, 0);
-
-    int col =env->GetArrayLength(myarray); //获得列数
-
-    jfloat _landmark[size][col];
-
-    for (i = 0; i < size; i++){
-
-        myarray = (jarray)env->GetObjectArrayElement(_jlandmark, i);
-
-        jfloat *coldata = env->GetFloatArrayElements((jfloatArray)myarray, 0 );
+// 112x112 对齐后人脸
+static const int FACE_SIZE = 112;
+static const int FACE_AREA = FACE_SIZE * FACE_SIZE;
+static const int TENSOR_SIZE = 3 * FACE_AREA;
+
+// 由5个关键点计算到标准人脸的相似变换
+// 关键点不是 5x2 时抛出 IllegalArgumentException 并返回空 Mat
+cv::Mat alignTransform(JNIEnv *env, jobjectArray _jlandmark) {
+    if (_jlandmark == nullptr || env->GetArrayLength(_jlandmark) != 5) {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                      "landmarks must be 5 points");
+        return cv::Mat();
+    }
 
-        for (j=0; j<col; j++) {
-            _landmark [i] [j] = coldata[j];
+    float _landmark[5][2];
+    for (int i = 0; i < 5; i++) {
+        jfloatArray point = (jfloatArray) env->GetObjectArrayElement(_jlandmark, i);
+        if (point == nullptr || env->GetArrayLength(point) != 2) {
+            env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                          "every landmark must be an {x, y} pair");
+            return cv::Mat();
         }
-
+        env->GetFloatArrayRegion(point, 0, 2, _landmark[i]);
+        env->DeleteLocalRef(point);
     }
 
-
-    cv::Mat image(112, 112, CV_32FC1);
-    bitmap2mat(env, _bitmap, image, false);
-
-
     float _src[5][2]={
             { 30.2946f + 8.0f, 51.6963f},
             { 65.5318f + 8.0f, 51.5014f},
@@ -160,12 +154,20 @@ Java_pp_facerecognizer_align_FacePreprocess_facePreprocess(JNIEnv *env, jobject
     };
 
     cv::Mat src(5, 2, CV_32FC1, _src);
-    memcpy(src.data, _src, 2 * 5 * sizeof(float));
-
     cv::Mat dst(5, 2, CV_32FC1, _landmark);
-    memcpy(dst.data, _landmark, 2 * 5 * sizeof(float));
 
-    cv::Mat M = FacePreprocess::similarTransform(dst, src);  // skimage.transform.SimilarityTransform
+    return FacePreprocess::similarTransform(dst, src);  // skimage.transform.SimilarityTransform
+}
+
+extern "C" JNIEXPORT jobject JNICALL
+Java_pp_facerecognizer_align_FacePreprocess_facePreprocess(JNIEnv *env, jobject instance, \
+        jobject _bitmap, jobjectArray _jlandmark) {
+
+    cv::Mat image(112, 112, CV_32FC1);
+    bitmap2mat(env, _bitmap, image, false);
+
+    cv::Mat M = alignTransform(env, _jlandmark);
+    if (M.empty()) return nullptr;
 
     cv::Mat warpImg;
 
@@ -182,21 +184,74 @@ Java_pp_facerecognizer_align_FacePreprocess_facePreprocess(JNIEnv *env, jobject
 
 }
 
+// 对齐人脸并直接写成 CHW float (R,G,B 平面, 0..255) 到 direct FloatBuffer,
+// 不经过 Java Bitmap。返回写入的 float 个数。
+extern "C" JNIEXPORT jint JNICALL
+Java_pp_facerecognizer_align_FacePreprocess_facePreprocessToTensor(JNIEnv *env, jclass clazz,
+        jobject _bitmap, jobjectArray _jlandmark, jobject _tensor, jint position, jint remaining,
+        jboolean original, jboolean mirrored) {
+
+    int count = (original ? 1 : 0) + (mirrored ? 1 : 0);
+    float *tensor = (float *) env->GetDirectBufferAddress(_tensor);
+    if (tensor == nullptr) {
+        jclass je = env->FindClass("java/lang/IllegalArgumentException");
+        env->ThrowNew(je, "FloatBuffer must be direct");
+        return 0;
+    }
+    if (remaining < count * TENSOR_SIZE) {
+        jclass je = env->FindClass("java/nio/BufferOverflowException");
+        env->ThrowNew(je, "");
+        return 0;
+    }
+    tensor += position;
 
+    cv::Mat M = alignTransform(env, _jlandmark);
+    if (M.empty()) return 0;
 
+    // 直接在 bitmap 像素上做仿射, 不复制整帧
+    AndroidBitmapInfo info;
+    void *pixels = 0;
+    uint8_t warped[FACE_AREA * 4];
+    cv::Mat warpImg(FACE_SIZE, FACE_SIZE, CV_8UC4, warped);
+    try {
+        CV_Assert(AndroidBitmap_getInfo(env, _bitmap, &info) >= 0);
+        if (info.format == ANDROID_BITMAP_FORMAT_RGBA_8888) {
+            CV_Assert(AndroidBitmap_lockPixels(env, _bitmap, &pixels) >= 0);
+            CV_Assert(pixels);
+            cv::Mat image(info.height, info.width, CV_8UC4, pixels, info.stride);
+            cv::warpPerspective(image, warpImg, M, warpImg.size());
+            AndroidBitmap_unlockPixels(env, _bitmap);
+        } else {
+            cv::Mat image;
+            bitmap2mat(env, _bitmap, image, false);
+            if (env->ExceptionCheck()) return 0;
+            cv::warpPerspective(image, warpImg, M, warpImg.size());
+        }
+    } catch (const cv::Exception &e) {
+        if (pixels) AndroidBitmap_unlockPixels(env, _bitmap);
+        jclass je = env->FindClass("java/lang/Exception");
+        env->ThrowNew(je, e.what());
+        return 0;
+    }
 
+    float *mirror = original ? tensor + TENSOR_SIZE : tensor;
+    for (int y = 0; y < FACE_SIZE; y++) {
+        const uint8_t *p = warped + y * FACE_SIZE * 4;
+        int row = y * FACE_SIZE;
+        for (int x = 0; x < FACE_SIZE; x++, p += 4) {
+            if (original) {
+                tensor[row + x] = p[0];
+                tensor[FACE_AREA + row + x] = p[1];
+                tensor[2 * FACE_AREA + row + x] = p[2];
+            }
+            if (mirrored) {
+                int j = row + FACE_SIZE - 1 - x;
+                mirror[j] = p[0];
+                mirror[FACE_AREA + j] = p[1];
+                mirror[2 * FACE_AREA + j] = p[2];
+            }
+        }
+    }
 
-
-
-
-
-
-
-
-
-
-
-
-
-
-
+    return count * TENSOR_SIZE;
+}
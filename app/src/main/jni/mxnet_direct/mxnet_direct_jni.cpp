@@ -0,0 +1,171 @@
+//
+// Direct-buffer variants of the mxnet_predict JNI methods. Input and output
+// floats are read from / written to caller-owned direct FloatBuffers, so no
+// Java array is pinned, copied or allocated per call.
+//
+
+#include <jni.h>
+#include <string>
+#include <vector>
+
+extern "C" {
+// Subset of mxnet/c_predict_api.h exported by libmxnet_predict.so.
+typedef unsigned int mx_uint;
+typedef float mx_float;
+typedef void *PredictorHandle;
+
+const char *MXGetLastError();
+int MXPredCreate(const char *symbol_json_str, const void *param_bytes, int param_size,
+                 int dev_type, int dev_id, mx_uint num_input_nodes, const char **input_keys,
+                 const mx_uint *input_shape_indptr, const mx_uint *input_shape_data,
+                 PredictorHandle *out);
+int MXPredReshape(mx_uint num_input_nodes, const char **input_keys,
+                  const mx_uint *input_shape_indptr, const mx_uint *input_shape_data,
+                  PredictorHandle handle, PredictorHandle *out);
+int MXPredSetInput(PredictorHandle handle, const char *key,
+                   const mx_float *data, mx_uint size);
+int MXPredForward(PredictorHandle handle);
+int MXPredGetOutputShape(PredictorHandle handle, mx_uint index,
+                         mx_uint **shape_data, mx_uint *shape_ndim);
+int MXPredGetOutput(PredictorHandle handle, mx_uint index,
+                    mx_float *data, mx_uint size);
+}
+
+static void throwMxnet(JNIEnv *env, const char *message) {
+    jclass je = env->FindClass("java/lang/IllegalStateException");
+    env->ThrowNew(je, message);
+}
+
+static void throwArgument(JNIEnv *env, const char *message) {
+    jclass je = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(je, message);
+}
+
+// Returns the float at `position` inside a direct buffer, or null after throwing.
+static mx_float *bufferAt(JNIEnv *env, jobject buffer, jint position) {
+    mx_float *address = (mx_float *) env->GetDirectBufferAddress(buffer);
+    if (address == nullptr) {
+        throwArgument(env, "FloatBuffer must be direct");
+        return nullptr;
+    }
+    return address + position;
+}
+
+// Input keys and shapes of a predictor, converted from Java arrays to the layout of the
+// predict API.
+struct InputShapes {
+    std::vector<std::string> keyStrings;
+    std::vector<const char *> keyPtrs;
+    std::vector<mx_uint> indptr;
+    std::vector<mx_uint> shapeData;
+
+    InputShapes(JNIEnv *env, jobjectArray keys, jobjectArray shapes)
+            : keyStrings(env->GetArrayLength(keys)), keyPtrs(keyStrings.size()), indptr(1, 0) {
+        for (size_t i = 0; i < keyStrings.size(); i++) {
+            jstring key = (jstring) env->GetObjectArrayElement(keys, (jsize) i);
+            const char *ckey = env->GetStringUTFChars(key, nullptr);
+            keyStrings[i] = ckey;
+            env->ReleaseStringUTFChars(key, ckey);
+            keyPtrs[i] = keyStrings[i].c_str();
+
+            jintArray shape = (jintArray) env->GetObjectArrayElement(shapes, (jsize) i);
+            jsize ndim = env->GetArrayLength(shape);
+            jint *dims = env->GetIntArrayElements(shape, nullptr);
+            for (jsize j = 0; j < ndim; j++) shapeData.push_back((mx_uint) dims[j]);
+            env->ReleaseIntArrayElements(shape, dims, JNI_ABORT);
+            indptr.push_back((mx_uint) shapeData.size());
+        }
+    }
+
+    mx_uint count() const { return (mx_uint) keyPtrs.size(); }
+};
+
+// Creates a predictor whose weights are read straight from a direct (typically
+// memory-mapped) ByteBuffer instead of a Java byte[] copy.
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_dmlc_mxnet_Predictor_createPredictorDirect(JNIEnv *env, jclass clazz,
+                                                    jbyteArray symbol, jobject params,
+                                                    jint paramsPosition, jint paramsSize,
+                                                    jint devType, jint devId,
+                                                    jobjectArray keys, jobjectArray shapes) {
+    const char *paramBytes = (const char *) env->GetDirectBufferAddress(params);
+    if (paramBytes == nullptr) {
+        throwArgument(env, "params ByteBuffer must be direct");
+        return 0;
+    }
+
+    // the symbol JSON has to be NUL-terminated
+    jsize symbolSize = env->GetArrayLength(symbol);
+    std::string symbolJson(symbolSize, '\0');
+    env->GetByteArrayRegion(symbol, 0, symbolSize, (jbyte *) &symbolJson[0]);
+
+    InputShapes inputs(env, keys, shapes);
+    PredictorHandle handle = nullptr;
+    if (MXPredCreate(symbolJson.c_str(), paramBytes + paramsPosition, paramsSize,
+                     devType, devId, inputs.count(), inputs.keyPtrs.data(),
+                     inputs.indptr.data(), inputs.shapeData.data(), &handle) != 0) {
+        throwMxnet(env, MXGetLastError());
+        return 0;
+    }
+    return (jlong) handle;
+}
+
+// Creates a predictor for new input shapes that shares the weights of an existing one, so
+// several batch sizes cost one copy of the params.
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_dmlc_mxnet_Predictor_reshapePredictor(JNIEnv *env, jclass clazz, jlong handle,
+                                               jobjectArray keys, jobjectArray shapes) {
+    InputShapes inputs(env, keys, shapes);
+
+    PredictorHandle reshaped = nullptr;
+    if (MXPredReshape(inputs.count(), inputs.keyPtrs.data(), inputs.indptr.data(),
+                      inputs.shapeData.data(), (PredictorHandle) handle, &reshaped) != 0) {
+        throwMxnet(env, MXGetLastError());
+        return 0;
+    }
+    return (jlong) reshaped;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_dmlc_mxnet_Predictor_nativeForwardBuffer(JNIEnv *env, jclass clazz, jlong handle,
+                                                   jstring key, jobject input,
+                                                   jint position, jint size) {
+    mx_float *data = bufferAt(env, input, position);
+    if (data == nullptr) return;
+
+    const char *ckey = env->GetStringUTFChars(key, nullptr);
+    int ret = MXPredSetInput((PredictorHandle) handle, ckey, data, (mx_uint) size);
+    env->ReleaseStringUTFChars(key, ckey);
+
+    if (ret != 0 || MXPredForward((PredictorHandle) handle) != 0) {
+        throwMxnet(env, MXGetLastError());
+    }
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_dmlc_mxnet_Predictor_nativeGetOutputBuffer(JNIEnv *env, jclass clazz, jlong handle,
+                                                     jint index, jobject output,
+                                                     jint position, jint capacity) {
+    mx_uint *shape = nullptr;
+    mx_uint ndim = 0;
+    if (MXPredGetOutputShape((PredictorHandle) handle, (mx_uint) index, &shape, &ndim) != 0) {
+        throwMxnet(env, MXGetLastError());
+        return 0;
+    }
+
+    mx_uint size = 1;
+    for (mx_uint i = 0; i < ndim; i++) size *= shape[i];
+    if (size > (mx_uint) capacity) {
+        throwArgument(env, "output buffer too small");
+        return 0;
+    }
+
+    mx_float *data = bufferAt(env, output, position);
+    if (data == nullptr) return 0;
+
+    if (MXPredGetOutput((PredictorHandle) handle, (mx_uint) index, data, size) != 0) {
+        throwMxnet(env, MXGetLastError());
+        return 0;
+    }
+    return (jint) size;
+}
@@ -0,0 +1,38 @@
+package pp.facerecognizer.search;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class EmbeddingRowsTest {
+
+    private static final int DIM = 128;
+    private static final int ROWS = 100;
+
+    @Test
+    public void reducedPrecisionCosineStaysClose() {
+        assertCosineError(Precision.FP16, 1e-3f);
+        assertCosineError(Precision.INT8, 2e-2f);
+    }
+
+    private static void assertCosineError(Precision precision, float maxError) {
+        Random random = new Random(13);
+        EmbeddingRows exact = EmbeddingRows.create(Precision.FLOAT32, DIM);
+        EmbeddingRows reduced = EmbeddingRows.create(precision, DIM);
+        float[][] rows = new float[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = Vectors.randomUnit(random, DIM);
+            exact.set(i, rows[i]);
+            reduced.set(i, rows[i]);
+        }
+
+        for (int q = 0; q < 20; q++) {
+            float[] query = Vectors.near(random, rows[random.nextInt(ROWS)], 0.5f);
+            for (int i = 0; i < ROWS; i++) {
+                assertEquals(precision + " row " + i, exact.cosine(i, query), reduced.cosine(i, query), maxError);
+            }
+        }
+    }
+}
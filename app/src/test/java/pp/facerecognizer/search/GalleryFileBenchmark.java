@@ -0,0 +1,95 @@
+package pp.facerecognizer.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Cold open time of a {@link GalleryFile}: map, replay and rebuild a {@link Search}, for a
+ * compacted gallery of synthetic identities with a few samples each.
+ *
+ * Runs on a plain JVM: {@code java pp.facerecognizer.search.GalleryFileBenchmark [identities] [dir]},
+ * 50000 identities in the temp directory by default. Note that a second run in the same process
+ * reads from the page cache; drop caches (or reboot the device) for a true cold open.
+ */
+public class GalleryFileBenchmark {
+
+    private static final int DIM = 128;
+    private static final int SAMPLES = 3;
+    private static final int MODEL_VERSION = 1;
+
+    private GalleryFileBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        int identities = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        run(new File(dir, "benchmark-" + GalleryFile.FILE_NAME), identities);
+    }
+
+    public static void run(File file, int identities) throws IOException {
+        file.delete();
+        Random random = new Random(identities);
+
+        List<String> names = new ArrayList<>();
+        List<List<float[]>> samples = new ArrayList<>();
+        for (int i = 0; i < identities; i++) {
+            names.add("person " + i);
+            List<float[]> embeddings = new ArrayList<>();
+            for (int s = 0; s < SAMPLES; s++) embeddings.add(randomEmbedding(random));
+            samples.add(embeddings);
+        }
+
+        long start = System.nanoTime();
+        GalleryFile gallery = GalleryFile.open(file, DIM, MODEL_VERSION);
+        gallery.appendAll(0, names, samples);
+        gallery.close();
+        float writeMs = (System.nanoTime() - start) / 1e6f;
+
+        start = System.nanoTime();
+        final Search search = new Search(Precision.FLOAT32);
+        final List<String> loaded = new ArrayList<>();
+        final Map<Integer, List<FloatBuffer>> enrollments = new LinkedHashMap<>();
+        gallery = GalleryFile.open(file, DIM, MODEL_VERSION);
+        gallery.replay(new GalleryFile.Visitor() {
+            @Override
+            public void onName(int label, String name) {
+                loaded.add(name);
+            }
+
+            @Override
+            public void onEnroll(int label, List<FloatBuffer> embeddings) {
+                enrollments.put(label, embeddings);
+            }
+
+            @Override
+            public void onDelete(int label) {
+                enrollments.remove(label);
+            }
+
+            @Override
+            public void onRelabel(int from, int to) {
+                List<FloatBuffer> moved = enrollments.remove(from);
+                if (moved != null) enrollments.put(to, moved);
+            }
+        });
+        search.storageMapped(enrollments);
+        gallery.close();
+        float openMs = (System.nanoTime() - start) / 1e6f;
+
+        System.out.println(String.format(
+                "%d identities x %d samples, %.1fMB: written in %.0fms, opened into Search in %.0fms (%.1fus/identity)",
+                identities, SAMPLES, file.length() / 1e6f, writeMs, openMs, openMs * 1000f / identities));
+        file.delete();
+    }
+
+    private static float[] randomEmbedding(Random random) {
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < DIM; i++) embedding[i] = (float) random.nextGaussian();
+        return embedding;
+    }
+}
@@ -0,0 +1,164 @@
+package pp.facerecognizer.search;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GalleryFileTest {
+
+    private static final int DIM = 128;
+    private static final int MODEL_VERSION = 1;
+
+    private final Random random = new Random(3);
+    private File dir;
+    private File file;
+
+    // the live state a replay reports
+    private static class State implements GalleryFile.Visitor {
+        final Map<Integer, String> names = new TreeMap<>();
+        final Map<Integer, List<float[]>> enrolled = new TreeMap<>();
+        final Set<Integer> deleted = new HashSet<>();
+
+        @Override
+        public void onName(int label, String name) {
+            names.put(label, name);
+            deleted.remove(label);
+        }
+
+        @Override
+        public void onEnroll(int label, List<FloatBuffer> embeddings) {
+            List<float[]> copies = new ArrayList<>();
+            for (FloatBuffer embedding : embeddings) {
+                float[] copy = new float[DIM];
+                embedding.duplicate().get(copy);
+                copies.add(copy);
+            }
+            enrolled.put(label, copies);
+        }
+
+        @Override
+        public void onDelete(int label) {
+            names.remove(label);
+            enrolled.remove(label);
+            deleted.add(label);
+        }
+
+        @Override
+        public void onRelabel(int from, int to) {
+            names.put(to, names.remove(from));
+            enrolled.put(to, enrolled.remove(from));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("galleryfile", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, GalleryFile.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void compactionRoundTrip() throws IOException {
+        GalleryFile log = GalleryFile.open(file, DIM, MODEL_VERSION);
+        List<String> names = new ArrayList<>();
+        for (int label = 0; label < 5; label++) {
+            names.add("p" + label);
+            log.appendName(label, names.get(label));
+            log.appendEnroll(label, samples(2));
+        }
+        List<float[]> latest = samples(3);
+        log.appendEnroll(2, latest);
+        log.appendDelete(3);
+        names.set(3, null);
+
+        State before = replay(log);
+        long uncompacted = file.length();
+        log.compact(names);
+        assertTrue(file.length() < uncompacted);
+        log.close();
+
+        log = GalleryFile.open(file, DIM, MODEL_VERSION);
+        try {
+            State after = replay(log);
+            assertEquals(before.names, after.names);
+            assertEquals(Collections.singleton(3), after.deleted);
+            assertEquals(before.enrolled.keySet(), after.enrolled.keySet());
+            for (int label : before.enrolled.keySet()) {
+                assertEnrollment(before.enrolled.get(label), after.enrolled.get(label));
+            }
+            assertEnrollment(latest, after.enrolled.get(2));
+            assertEnrollment(latest, log.readEnrollment(2));
+            assertEquals(4, log.getCount());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void rollbackDropsRecordsAfterMark() throws IOException {
+        GalleryFile log = GalleryFile.open(file, DIM, MODEL_VERSION);
+        log.appendName(0, "alice");
+        List<float[]> alice = samples(1);
+        log.appendEnroll(0, alice);
+        long mark = log.mark();
+        long length = file.length();
+
+        log.appendAll(1, Arrays.asList("bob", "carol"), Arrays.asList(samples(1), samples(2)));
+        log.rollback(mark);
+        assertEquals(length, file.length());
+        assertEquals(1, log.getCount());
+        log.close();
+
+        log = GalleryFile.open(file, DIM, MODEL_VERSION);
+        try {
+            State state = replay(log);
+            assertEquals(Collections.singletonMap(0, "alice"), state.names);
+            assertEnrollment(alice, state.enrolled.get(0));
+        } finally {
+            log.close();
+        }
+    }
+
+    private static State replay(GalleryFile log) throws IOException {
+        State state = new State();
+        log.replay(state);
+        return state;
+    }
+
+    private static void assertEnrollment(List<float[]> expected, List<float[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertArrayEquals(expected.get(i), actual.get(i), 0f);
+    }
+
+    private List<float[]> samples(int count) {
+        List<float[]> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) samples.add(Vectors.randomUnit(random, DIM));
+        return samples;
+    }
+}
@@ -0,0 +1,87 @@
+package pp.facerecognizer.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import pp.facerecognizer.recognition.FacePredictor;
+import pp.facerecognizer.recognition.MxNetUtils;
+
+/**
+ * Times one full gallery scan on the old path (an ArrayList of float[] scored with
+ * {@link MxNetUtils#calCosineSimilarity(float[], float[])}, logging included) against the flat
+ * pre-normalized {@link EmbeddingRows} of every {@link Precision}.
+ *
+ * Embeddings are random; only the memory layout and kernel matter for timing.
+ */
+public class GalleryScanBenchmark {
+
+    public static class Result {
+        public final String path;
+        public final int gallerySize;
+        public final float msPerQuery;
+
+        Result(String path, int gallerySize, float msPerQuery) {
+            this.path = path;
+            this.gallerySize = gallerySize;
+            this.msPerQuery = msPerQuery;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, %d identities: %.3fms/query", path, gallerySize, msPerQuery);
+        }
+    }
+
+    // keeps the JIT from dropping the scans
+    private static volatile float sink;
+
+    private GalleryScanBenchmark() {}
+
+    public static List<Result> run(int gallerySize, int queries) {
+        final int dim = FacePredictor.EMBEDDING_SIZE;
+        Random random = new Random(42);
+
+        ArrayList<float[]> gallery = new ArrayList<>();
+        for (int i = 0; i < gallerySize; i++) gallery.add(randomEmbedding(random, dim));
+        float[][] queryList = new float[queries][];
+        for (int q = 0; q < queries; q++) queryList[q] = randomEmbedding(random, dim);
+
+        List<Result> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (float[] query : queryList) {
+            float max = 0f;
+            for (int i = 0; i < gallery.size(); i++) {
+                max = Math.max(max, MxNetUtils.calCosineSimilarity(query, gallery.get(i)));
+            }
+            sink = max;
+        }
+        results.add(new Result("ArrayList + calCosineSimilarity", gallerySize,
+                (System.nanoTime() - start) / 1e6f / queries));
+
+        for (Precision precision : Precision.values()) {
+            EmbeddingRows rows = EmbeddingRows.create(precision, dim);
+            for (int i = 0; i < gallerySize; i++) rows.set(i, gallery.get(i));
+
+            start = System.nanoTime();
+            for (float[] query : queryList) {
+                float[] unit = EmbeddingRows.unit(query);
+                float max = 0f;
+                for (int i = 0; i < rows.size(); i++) {
+                    max = Math.max(max, rows.cosine(i, unit));
+                }
+                sink = max;
+            }
+            results.add(new Result("EmbeddingRows " + precision, gallerySize,
+                    (System.nanoTime() - start) / 1e6f / queries));
+        }
+        return results;
+    }
+
+    private static float[] randomEmbedding(Random random, int dim) {
+        float[] embedding = new float[dim];
+        for (int i = 0; i < dim; i++) embedding[i] = (float) random.nextGaussian();
+        return embedding;
+    }
+}
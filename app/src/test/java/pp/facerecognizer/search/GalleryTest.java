@@ -0,0 +1,143 @@
+package pp.facerecognizer.search;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pp.facerecognizer.recognition.FacePredictor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GalleryTest {
+
+    private static final int DIM = FacePredictor.EMBEDDING_SIZE;
+
+    private final Random random = new Random(42);
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("gallery", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, GalleryFile.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void reloadAfterCompactionKeepsDeletedLabels() throws IOException {
+        List<float[]> alice = samples(2);
+        GalleryFile log = GalleryFile.open(file, DIM, FacePredictor.MODEL_VERSION);
+        log.appendName(0, "alice");
+        log.appendEnroll(0, alice);
+        log.appendName(1, "bob");
+        log.appendEnroll(1, samples(2));
+        log.appendName(2, "carol");
+        log.appendEnroll(2, samples(2));
+        log.appendDelete(1);
+        log.appendDelete(2);
+        log.compact(Arrays.asList("alice", null, null));
+        log.close();
+
+        Gallery gallery = Gallery.open("test", file, Precision.FLOAT32, 0.5f);
+        try {
+            assertEquals(3, gallery.getLabelCount());
+            assertEquals(Collections.singletonList("alice"), gallery.getPeople());
+            assertNull(gallery.getPerson(1));
+            assertNull(gallery.getPerson(2));
+            // deleted labels are not handed out again
+            assertEquals(3, gallery.addPerson("dave"));
+
+            SearchResult result = gallery.getSearch().predictTopK(alice.get(0), 3);
+            assertEquals(1, result.size());
+            assertEquals(0, result.getLabel());
+        } finally {
+            gallery.close();
+        }
+    }
+
+    @Test
+    public void compactionTriggeredByRewritesSurvivesReload() throws IOException {
+        Gallery gallery = Gallery.open("test", file, Precision.FLOAT32, 0.5f);
+        int alice = gallery.addPerson("alice");
+        int bob = gallery.addPerson("bob");
+        int carol = gallery.addPerson("carol");
+        gallery.enroll(bob, samples(1));
+        gallery.enroll(carol, samples(1));
+        gallery.delete(bob);
+        long beforeRewrites = file.length();
+
+        ArrayList<float[]> last = null;
+        for (int i = 0; i < 200; i++) {
+            last = samples(2);
+            gallery.enroll(alice, last);
+        }
+        // 200 enrollments without compaction would be far bigger than this
+        assertTrue(file.length() < beforeRewrites + 100L * 2 * DIM * 4);
+        gallery.close();
+
+        gallery = Gallery.open("test", file, Precision.FLOAT32, 0.5f);
+        try {
+            assertEquals(3, gallery.getLabelCount());
+            assertEquals(Arrays.asList("alice", "carol"), gallery.getPeople());
+            assertNull(gallery.getPerson(bob));
+            assertEquals(alice, gallery.getSearch().predictTopK(last.get(0), 1).getLabel());
+            assertEquals(3, gallery.addPerson("dave"));
+        } finally {
+            gallery.close();
+        }
+    }
+
+    @Test
+    public void savedSamplesStayFloat32AtLowerPrecision() throws IOException {
+        Gallery gallery = Gallery.open("test", file, Precision.INT8, 0.5f);
+        try {
+            int alice = gallery.addPerson("alice");
+            ArrayList<float[]> enrolled = samples(3);
+            gallery.enroll(alice, enrolled);
+            for (int i = 0; i < 200; i++) gallery.enroll(gallery.addPerson("p" + i), samples(1));
+            for (int i = 0; i < 200; i++) gallery.delete(alice + 1 + i);
+
+            List<float[]> saved = gallery.getSamples(alice);
+            assertEquals(enrolled.size(), saved.size());
+            for (int i = 0; i < enrolled.size(); i++) assertArrayEquals(enrolled.get(i), saved.get(i), 0f);
+        } finally {
+            gallery.close();
+        }
+    }
+
+    private ArrayList<float[]> samples(int count) {
+        ArrayList<float[]> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            float[] embedding = new float[DIM];
+            float norm = 0;
+            for (int d = 0; d < DIM; d++) {
+                embedding[d] = (float) random.nextGaussian();
+                norm += embedding[d] * embedding[d];
+            }
+            norm = (float) Math.sqrt(norm);
+            for (int d = 0; d < DIM; d++) embedding[d] /= norm;
+            samples.add(embedding);
+        }
+        return samples;
+    }
+}
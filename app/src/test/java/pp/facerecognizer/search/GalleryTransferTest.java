@@ -0,0 +1,136 @@
+package pp.facerecognizer.search;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pp.facerecognizer.recognition.FacePredictor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GalleryTransferTest {
+
+    private static final int DIM = FacePredictor.EMBEDDING_SIZE;
+
+    private final Random random = new Random(5);
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("transfer", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, GalleryFile.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        Gallery source = inMemory(3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GalleryTransfer.Report exported = GalleryTransfer.exportTo(out, false, source);
+        assertEquals(3, exported.identities);
+
+        Gallery gallery = Gallery.open("test", file, Precision.FLOAT32, 0.5f);
+        try {
+            GalleryTransfer.Report imported =
+                    GalleryTransfer.importFrom(new ByteArrayInputStream(out.toByteArray()), false, gallery);
+            assertEquals(exported.identities, imported.identities);
+            assertEquals(exported.samples, imported.samples);
+            assertEquals(source.getPeople(), gallery.getPeople());
+            for (int label = 0; label < 3; label++) {
+                assertSamples(source.getSamples(label), gallery.getSamples(label));
+            }
+        } finally {
+            gallery.close();
+        }
+
+        gallery = Gallery.open("test", file, Precision.FLOAT32, 0.5f);
+        try {
+            assertEquals(source.getPeople(), gallery.getPeople());
+            assertSamples(source.getSamples(2), gallery.getSamples(2));
+        } finally {
+            gallery.close();
+        }
+    }
+
+    @Test
+    public void halfFailedImportAddsNobody() throws IOException {
+        // more people than one import batch, so some are appended before the stream breaks
+        Gallery source = inMemory(1500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GalleryTransfer.exportTo(out, false, source);
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 100);
+
+        Gallery gallery = Gallery.open("test", file, Precision.FLOAT32, 0.5f);
+        ArrayList<float[]> alice = new ArrayList<>();
+        alice.add(Vectors.randomUnit(random, DIM));
+        try {
+            gallery.enroll(gallery.addPerson("alice"), alice);
+            long length = file.length();
+
+            try {
+                GalleryTransfer.importFrom(new ByteArrayInputStream(truncated), false, gallery);
+                fail("truncated stream imported");
+            } catch (IOException expected) {
+            }
+
+            assertEquals(length, file.length());
+            assertEquals(1, gallery.getLabelCount());
+            assertEquals(Collections.singletonList("alice"), gallery.getPeople());
+            assertEquals(1, gallery.getSearch().predictTopK(source.getSamples(0).get(0), 5).size());
+        } finally {
+            gallery.close();
+        }
+
+        gallery = Gallery.open("test", file, Precision.FLOAT32, 0.5f);
+        try {
+            assertEquals(Collections.singletonList("alice"), gallery.getPeople());
+            assertEquals(1, gallery.addPerson("bob"));
+        } finally {
+            gallery.close();
+        }
+    }
+
+    // a gallery without a file holding count people of two samples each
+    private Gallery inMemory(int count) throws IOException {
+        Gallery gallery = new Gallery("source", new Search(Precision.FLOAT32), 0.5f);
+        final boolean[] done = {false};
+        gallery.addAll((people, embeddings) -> {
+            if (done[0]) return false;
+            for (int i = 0; i < count; i++) {
+                people.add("p" + i);
+                embeddings.add(Arrays.asList(Vectors.randomUnit(random, DIM), Vectors.randomUnit(random, DIM)));
+            }
+            done[0] = true;
+            return true;
+        });
+        return gallery;
+    }
+
+    private static void assertSamples(List<float[]> expected, List<float[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertArrayEquals(expected.get(i), actual.get(i), 0f);
+    }
+}
@@ -0,0 +1,104 @@
+package pp.facerecognizer.search;
+
+import java.util.Random;
+
+/**
+ * Recall versus latency of {@link HnswIndex} against the exact brute-force scan, on synthetic
+ * 128-d unit vectors. Queries are noisy copies of gallery vectors, like a new photo of an
+ * enrolled face.
+ *
+ * Runs on a plain JVM: {@code java pp.facerecognizer.search.HnswBenchmark [sizes...]}, sizes
+ * default to 1000 10000 100000.
+ */
+public class HnswBenchmark {
+
+    private static final int DIM = 128;
+    private static final int QUERIES = 500;
+    private static final int K = 10;
+    private static final int M = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int[] EF_SEARCH = {16, 32, 64, 128, 256};
+    private static final float QUERY_NOISE = 0.05f;
+
+    private HnswBenchmark() {}
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000, 100000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    public static void run(int size) {
+        Random random = new Random(size);
+        float[][] gallery = new float[size][];
+        for (int i = 0; i < size; i++) gallery[i] = randomUnit(random, null, 0f);
+        float[][] queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = randomUnit(random, gallery[random.nextInt(size)], QUERY_NOISE);
+        }
+
+        // exact scan, also the ground truth
+        EmbeddingRows rows = EmbeddingRows.create(Precision.FLOAT32, DIM);
+        for (int i = 0; i < size; i++) rows.set(i, gallery[i]);
+        SearchResult[] exact = new SearchResult[QUERIES];
+        long start = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+            TopK top = new TopK(K);
+            for (int i = 0; i < size; i++) {
+                float sim = rows.cosine(i, queries[q]);
+                if (sim > top.threshold()) top.offer(i, sim);
+            }
+            exact[q] = top.toResult();
+        }
+        float exactMs = (System.nanoTime() - start) / 1e6f / QUERIES;
+
+        start = System.nanoTime();
+        HnswIndex index = new HnswIndex(DIM, M, EF_CONSTRUCTION, EF_SEARCH[0]);
+        for (int i = 0; i < size; i++) index.add(i, gallery[i]);
+        float buildS = (System.nanoTime() - start) / 1e9f;
+
+        System.out.println(String.format("%d vectors: brute force %.3fms/query, HNSW build %.1fs (M=%d, efConstruction=%d)",
+                size, exactMs, buildS, M, EF_CONSTRUCTION));
+
+        for (int ef : EF_SEARCH) {
+            index.setEfSearch(ef);
+            SearchResult[] approximate = new SearchResult[QUERIES];
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                approximate[q] = index.search(queries[q], K);
+            }
+            float ms = (System.nanoTime() - start) / 1e6f / QUERIES;
+
+            int top1 = 0;
+            int topK = 0;
+            for (int q = 0; q < QUERIES; q++) {
+                if (approximate[q].getLabel() == exact[q].getLabel()) top1++;
+                for (int i = 0; i < exact[q].size(); i++) {
+                    for (int j = 0; j < approximate[q].size(); j++) {
+                        if (approximate[q].getLabel(j) == exact[q].getLabel(i)) {
+                            topK++;
+                            break;
+                        }
+                    }
+                }
+            }
+            System.out.println(String.format("  efSearch %3d: %.3fms/query, recall@1 %.3f, recall@%d %.3f, %.1fx faster",
+                    ef, ms, top1 / (float) QUERIES, K, topK / (float) (QUERIES * K), exactMs / ms));
+        }
+    }
+
+    private static float[] randomUnit(Random random, float[] center, float noise) {
+        float[] v = new float[DIM];
+        for (int i = 0; i < DIM; i++) {
+            v[i] = center == null
+                    ? (float) random.nextGaussian()
+                    : center[i] + noise * (float) random.nextGaussian();
+        }
+        return EmbeddingRows.unit(v);
+    }
+}
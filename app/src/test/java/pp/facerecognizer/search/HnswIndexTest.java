@@ -0,0 +1,55 @@
+package pp.facerecognizer.search;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HnswIndexTest {
+
+    private static final int DIM = 128;
+    private static final int SIZE = 2000;
+    private static final int QUERIES = 200;
+    private static final float QUERY_NOISE = 0.5f;
+
+    private final Random random = new Random(7);
+
+    @Test
+    public void recallAgainstBruteForce() {
+        float[][] gallery = new float[SIZE][];
+        HnswIndex index = new HnswIndex(DIM, 16, 100, 64);
+        for (int i = 0; i < SIZE; i++) {
+            gallery[i] = Vectors.randomUnit(random, DIM);
+            index.add(i, gallery[i]);
+        }
+        assertEquals(SIZE, index.size());
+
+        int hits = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = Vectors.near(random, gallery[random.nextInt(SIZE)], QUERY_NOISE);
+            if (index.search(query, 1).getLabel() == Vectors.bruteForce(gallery, query)) hits++;
+        }
+        assertTrue("recall@1 " + hits + "/" + QUERIES, hits >= QUERIES * 0.9);
+    }
+
+    @Test
+    public void removedLabelsAreNotReturned() {
+        float[][] gallery = new float[200][];
+        HnswIndex index = new HnswIndex(DIM, 16, 100, 64);
+        for (int i = 0; i < gallery.length; i++) {
+            gallery[i] = Vectors.randomUnit(random, DIM);
+            index.add(i, gallery[i]);
+        }
+
+        index.remove(5);
+        assertEquals(gallery.length - 1, index.size());
+        assertNotEquals(5, index.search(gallery[5], 1).getLabel());
+
+        // re-adding a label replaces its vector
+        index.add(6, gallery[5]);
+        assertEquals(6, index.search(gallery[5], 1).getLabel());
+    }
+}
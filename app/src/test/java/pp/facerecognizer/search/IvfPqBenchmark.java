@@ -0,0 +1,104 @@
+package pp.facerecognizer.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Memory per identity and query latency of {@link IvfPqIndex} against the exact {@link Search}
+ * scan, on synthetic 128-d unit vectors with noisy copies as queries.
+ *
+ * Runs on a plain JVM: {@code java pp.facerecognizer.search.IvfPqBenchmark [size]}, size defaults
+ * to 100000. The index is trained on the gallery itself, like the offline step on enrolled vectors.
+ */
+public class IvfPqBenchmark {
+
+    private static final int DIM = 128;
+    private static final int QUERIES = 500;
+    private static final int SUBSPACES = 16;
+    private static final int ITERATIONS = 15;
+    private static final int[] NPROBE = {1, 4, 8, 16, 32};
+    private static final float QUERY_NOISE = 0.05f;
+
+    private IvfPqBenchmark() {}
+
+    public static void main(String[] args) {
+        run(args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+    }
+
+    public static void run(int size) {
+        Random random = new Random(size);
+        List<float[]> gallery = new ArrayList<>();
+        for (int i = 0; i < size; i++) gallery.add(randomUnit(random, null));
+        float[][] queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = randomUnit(random, gallery.get(random.nextInt(size)));
+        }
+
+        Search search = new Search(Precision.FLOAT32);
+        Map<Integer, List<float[]>> enrollments = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            enrollments.put(i, Collections.singletonList(gallery.get(i)));
+        }
+        search.storageAll(enrollments);
+
+        int[] expected = new int[QUERIES];
+        long start = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) expected[q] = search.predictTopK(queries[q], 1).getLabel();
+        float exactMs = (System.nanoTime() - start) / 1e6f / QUERIES;
+
+        int nlist = Math.max(1, (int) Math.sqrt(size));
+        start = System.nanoTime();
+        IvfPqIndex index = IvfPqIndex.train(gallery, nlist, SUBSPACES, NPROBE[0], ITERATIONS);
+        float trainS = (System.nanoTime() - start) / 1e9f;
+
+        long exactBytes = search.getMemoryBytes();
+        System.out.println(String.format(
+                "%d identities: exact scan %.3fms/query, %d bytes/identity (float32 rows and templates)",
+                size, exactMs, exactBytes / size));
+
+        // the index adds the enrolled identities; the rows only re-score its candidates, so int8
+        search.setIndex(index);
+        search.setPrecision(Precision.INT8);
+        long indexedBytes = search.getMemoryBytes();
+        System.out.println(String.format(
+                "IVF-PQ nlist=%d m=%d: trained in %.1fs, index %d bytes (%d of tables), "
+                        + "gallery with index %d bytes/identity",
+                nlist, SUBSPACES, trainS, index.bytes(), index.trainedBytes(), indexedBytes / size));
+
+        for (int nprobe : NPROBE) {
+            index.setNprobe(nprobe);
+
+            int adcHits = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                if (index.search(queries[q], 1).getLabel() == expected[q]) adcHits++;
+            }
+            float adcMs = (System.nanoTime() - start) / 1e6f / QUERIES;
+
+            int rerankHits = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                if (search.predictTopK(queries[q], 1).getLabel() == expected[q]) rerankHits++;
+            }
+            float rerankMs = (System.nanoTime() - start) / 1e6f / QUERIES;
+
+            System.out.println(String.format(
+                    "  nprobe %2d: ADC %.3fms/query recall@1 %.3f, with exact re-rank %.3fms/query recall@1 %.3f",
+                    nprobe, adcMs, adcHits / (float) QUERIES, rerankMs, rerankHits / (float) QUERIES));
+        }
+    }
+
+    private static float[] randomUnit(Random random, float[] center) {
+        float[] v = new float[DIM];
+        for (int i = 0; i < DIM; i++) {
+            v[i] = center == null
+                    ? (float) random.nextGaussian()
+                    : center[i] + QUERY_NOISE * (float) random.nextGaussian();
+        }
+        return EmbeddingRows.unit(v);
+    }
+}
@@ -0,0 +1,54 @@
+package pp.facerecognizer.search;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IvfPqIndexTest {
+
+    private static final int DIM = 128;
+    private static final int SIZE = 2000;
+    private static final int QUERIES = 200;
+    private static final float QUERY_NOISE = 0.5f;
+
+    private final Random random = new Random(11);
+
+    @Test
+    public void recallAgainstBruteForce() {
+        float[][] gallery = new float[SIZE][];
+        List<float[]> training = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++) {
+            gallery[i] = Vectors.randomUnit(random, DIM);
+            training.add(gallery[i]);
+        }
+        // like Gallery: sqrt(n) lists, 16 subquantizers
+        IvfPqIndex index = IvfPqIndex.train(training, (int) Math.sqrt(SIZE), 16, 16, 15);
+        for (int i = 0; i < SIZE; i++) index.add(i, gallery[i]);
+        assertEquals(SIZE, index.size());
+
+        int hits = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = Vectors.near(random, gallery[random.nextInt(SIZE)], QUERY_NOISE);
+            if (index.search(query, 1).getLabel() == Vectors.bruteForce(gallery, query)) hits++;
+        }
+        assertTrue("recall@1 " + hits + "/" + QUERIES, hits >= QUERIES * 0.9);
+    }
+
+    @Test
+    public void removedLabelsAreNotReturned() {
+        List<float[]> gallery = new ArrayList<>();
+        for (int i = 0; i < 500; i++) gallery.add(Vectors.randomUnit(random, DIM));
+        IvfPqIndex index = IvfPqIndex.train(gallery, 16, 16, 16, 10);
+        for (int i = 0; i < gallery.size(); i++) index.add(i, gallery.get(i));
+
+        index.remove(5);
+        assertEquals(gallery.size() - 1, index.size());
+        assertNotEquals(5, index.search(gallery.get(5), 1).getLabel());
+    }
+}
@@ -0,0 +1,78 @@
+package pp.facerecognizer.search;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Scaling of the partitioned exact scan of {@link Search} from 1 to 8 threads, for a frame with a
+ * few faces, at several gallery sizes. The single-thread column is the plain scan, so the
+ * crossover size for {@link Search#setParallelScan(int, int)} can be read off directly.
+ *
+ * Runs on a plain JVM: {@code java pp.facerecognizer.search.ParallelScanBenchmark [sizes...]},
+ * sizes default to 1000 10000 100000.
+ */
+public class ParallelScanBenchmark {
+
+    private static final int DIM = 128;
+    private static final int FACES_PER_FRAME = 4;
+    private static final int FRAMES = 200;
+    private static final int MAX_THREADS = 8;
+
+    // keeps the JIT from dropping the scans
+    private static volatile float sink;
+
+    private ParallelScanBenchmark() {}
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000, 100000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    public static void run(int size) {
+        Random random = new Random(size);
+        Search search = new Search(Precision.FLOAT32);
+        Map<Integer, List<float[]>> enrollments = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            enrollments.put(i, Collections.singletonList(randomEmbedding(random)));
+        }
+        search.storageAll(enrollments);
+        float[][] frames = new float[FRAMES][];
+        for (int f = 0; f < FRAMES; f++) {
+            frames[f] = new float[FACES_PER_FRAME * DIM];
+            for (int i = 0; i < frames[f].length; i++) frames[f][i] = (float) random.nextGaussian();
+        }
+
+        StringBuilder line = new StringBuilder(String.format("%6d identities:", size));
+        float single = 0f;
+        for (int threads = 1; threads <= MAX_THREADS; threads++) {
+            search.setParallelScan(threads, 0);
+            // warm-up
+            for (int f = 0; f < FRAMES / 4; f++) search.predictBatch(frames[f], 2);
+
+            long start = System.nanoTime();
+            for (float[] frame : frames) {
+                sink = search.predictBatch(frame, 2)[0].getScore();
+            }
+            float ms = (System.nanoTime() - start) / 1e6f / FRAMES;
+            if (threads == 1) single = ms;
+            line.append(String.format(" %dT %.3fms (%.1fx)", threads, ms, single / ms));
+        }
+        search.setParallelScan(1, 0);
+        System.out.println(line);
+    }
+
+    private static float[] randomEmbedding(Random random) {
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < DIM; i++) embedding[i] = (float) random.nextGaussian();
+        return embedding;
+    }
+}
@@ -0,0 +1,98 @@
+package pp.facerecognizer.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pp.facerecognizer.recognition.MxNetUtils;
+
+/**
+ * Measures what each {@link Precision} costs against the original float cosine path of
+ * {@link MxNetUtils#calCosineSimilarity(float[], float[])}: score error, top-1 agreement, memory
+ * and scan time.
+ *
+ * Gallery and queries should be real embeddings, e.g. the enrolled identities and embeddings of
+ * other photos of the same people, so that the top-1 agreement reflects real decision margins.
+ */
+public class QuantizationBenchmark {
+
+    public static class Result {
+        public final Precision precision;
+        public final long bytes;
+        public final float maxScoreError;
+        public final float meanScoreError;
+        public final float top1Agreement;
+        public final float msPerQuery;
+
+        Result(Precision precision, long bytes, float maxScoreError, float meanScoreError,
+               float top1Agreement, float msPerQuery) {
+            this.precision = precision;
+            this.bytes = bytes;
+            this.maxScoreError = maxScoreError;
+            this.meanScoreError = meanScoreError;
+            this.top1Agreement = top1Agreement;
+            this.msPerQuery = msPerQuery;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d bytes, score error max %.5f mean %.5f, top-1 agreement %.2f%%, %.3fms/query",
+                    precision, bytes, maxScoreError, meanScoreError, top1Agreement * 100.0f, msPerQuery);
+        }
+    }
+
+    private QuantizationBenchmark() {}
+
+    public static List<Result> run(List<float[]> gallery, List<float[]> queries) {
+        List<Result> results = new ArrayList<>();
+        if (gallery.isEmpty() || queries.isEmpty()) return results;
+
+        // float baseline on the existing cosine path
+        float[][] expected = new float[queries.size()][gallery.size()];
+        int[] expectedTop1 = new int[queries.size()];
+        for (int q = 0; q < queries.size(); q++) {
+            for (int i = 0; i < gallery.size(); i++) {
+                expected[q][i] = MxNetUtils.calCosineSimilarity(queries.get(q), gallery.get(i));
+            }
+            expectedTop1[q] = argMax(expected[q]);
+        }
+
+        int dim = gallery.get(0).length;
+        for (Precision precision : Precision.values()) {
+            EmbeddingRows rows = EmbeddingRows.create(precision, dim);
+            for (int i = 0; i < gallery.size(); i++) rows.set(i, gallery.get(i));
+
+            float maxError = 0f;
+            double totalError = 0;
+            int agreed = 0;
+            long elapsed = 0;
+            float[] scores = new float[gallery.size()];
+            for (int q = 0; q < queries.size(); q++) {
+                float[] query = EmbeddingRows.unit(queries.get(q));
+
+                long start = System.nanoTime();
+                for (int i = 0; i < scores.length; i++) scores[i] = rows.cosine(i, query);
+                elapsed += System.nanoTime() - start;
+
+                for (int i = 0; i < scores.length; i++) {
+                    float error = Math.abs(scores[i] - expected[q][i]);
+                    maxError = Math.max(maxError, error);
+                    totalError += error;
+                }
+                if (argMax(scores) == expectedTop1[q]) agreed++;
+            }
+
+            results.add(new Result(precision, rows.bytes(), maxError,
+                    (float) (totalError / ((double) queries.size() * gallery.size())),
+                    agreed / (float) queries.size(), elapsed / 1e6f / queries.size()));
+        }
+        return results;
+    }
+
+    private static int argMax(float[] scores) {
+        int index = 0;
+        for (int i = 1; i < scores.length; i++) {
+            if (scores[i] > scores[index]) index = i;
+        }
+        return index;
+    }
+}
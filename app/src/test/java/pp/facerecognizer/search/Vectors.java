@@ -0,0 +1,43 @@
+package pp.facerecognizer.search;
+
+import java.util.Random;
+
+/**
+ * Synthetic unit-length embeddings for the search tests.
+ */
+final class Vectors {
+
+    private Vectors() {}
+
+    static float[] randomUnit(Random random, int dim) {
+        return near(random, new float[dim], 1f);
+    }
+
+    /** {@code base} plus gaussian noise of the given strength, normalized, like a new photo. */
+    static float[] near(Random random, float[] base, float noise) {
+        float[] vector = new float[base.length];
+        float norm = 0f;
+        for (int d = 0; d < vector.length; d++) {
+            vector[d] = base[d] + noise * (float) random.nextGaussian() / (float) Math.sqrt(base.length);
+            norm += vector[d] * vector[d];
+        }
+        norm = (float) Math.sqrt(norm);
+        for (int d = 0; d < vector.length; d++) vector[d] /= norm;
+        return vector;
+    }
+
+    /** Label of the vector most similar to {@code query}, by exact dot product. */
+    static int bruteForce(float[][] gallery, float[] query) {
+        int best = -1;
+        float bestScore = -Float.MAX_VALUE;
+        for (int i = 0; i < gallery.length; i++) {
+            float dot = 0f;
+            for (int d = 0; d < query.length; d++) dot += gallery[i][d] * query[d];
+            if (dot > bestScore) {
+                bestScore = dot;
+                best = i;
+            }
+        }
+        return best;
+    }
+}